@@ -0,0 +1,16 @@
+package annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+    Keeps entities loaded by findById in a bounded per-connection cache, see SQLConnection.enableEntityCache
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Cacheable {
+    int maxEntries() default 10000;
+    long ttlSeconds() default 300;
+}
@@ -5,8 +5,17 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/*
+    SQL run by a repository method. Placeholders are either positional (?) bound from the arguments in order,
+    or named (:name) bound from the argument of that name, see Param. SELECT statements are mapped to the
+    entity, a projection or a scalar according to the return type; other statements return their update count.
+    A method taking a single collection and returning int[] runs the statement once per element as a batch.
+    Queries that only read may run on a replica; data-modifying WITH queries and SELECT ... FOR UPDATE/SHARE run
+    on the primary and count as writes. readOnly = false does the same for reads with side effects.
+ */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface CustomQuery {
     String query();
+    boolean readOnly() default true;
 }
@@ -0,0 +1,227 @@
+package databases;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+
+/*
+    Factories for the built-in column codecs
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    @FunctionalInterface
+    public interface Binder<T> {
+        void bind(PreparedStatement stmt, int index, T value) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface Reader<T> {
+        T read(ResultSet rs, int index) throws SQLException;
+    }
+
+    /*
+        Codec for a reference type whose reader already returns null for SQL NULL
+     */
+    public static <T> ColumnCodec of(Class<T> type, String sqlType, int nullType, Binder<T> binder, Reader<T> reader) {
+        return new ColumnCodec() {
+            @Override
+            public String getSqlType() {
+                return sqlType;
+            }
+
+            @Override
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, nullType);
+                else binder.bind(stmt, index, type.cast(value));
+            }
+
+            @Override
+            public Object read(ResultSet rs, int index) throws SQLException {
+                return reader.read(rs, index);
+            }
+        };
+    }
+
+    /*
+        Fallback for types without a dedicated codec, left to the driver's setObject/getObject
+     */
+    public static ColumnCodec ofObject(String sqlType) {
+        return new ColumnCodec() {
+            @Override
+            public String getSqlType() {
+                return sqlType;
+            }
+
+            @Override
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                stmt.setObject(index, value);
+            }
+
+            @Override
+            public Object read(ResultSet rs, int index) throws SQLException {
+                return rs.getObject(index);
+            }
+        };
+    }
+
+    public static <E extends Enum<E>> ColumnCodec ofEnum(Class<E> type, String sqlType) {
+        return of(type, sqlType, Types.VARCHAR,
+                (stmt, index, value) -> stmt.setString(index, value.name()),
+                (rs, index) -> {
+                    String name = rs.getString(index);
+                    return name == null ? null : Enum.valueOf(type, name);
+                });
+    }
+
+    public static ColumnCodec ofString(String sqlType) {
+        return of(String.class, sqlType, Types.VARCHAR, PreparedStatement::setString, ResultSet::getString);
+    }
+
+    public static ColumnCodec ofInstant(String sqlType) {
+        return of(Instant.class, sqlType, Types.TIMESTAMP,
+                (stmt, index, value) -> stmt.setTimestamp(index, Timestamp.from(value)),
+                (rs, index) -> {
+                    Timestamp ts = rs.getTimestamp(index);
+                    return ts == null ? null : ts.toInstant();
+                });
+    }
+
+    /*
+        JDBC 4.2 java.time and similar types passed straight through setObject/getObject(index, type)
+     */
+    public static <T> ColumnCodec ofJdbcObject(Class<T> type, String sqlType, int nullType) {
+        return of(type, sqlType, nullType, PreparedStatement::setObject, (rs, index) -> rs.getObject(index, type));
+    }
+
+    public static ColumnCodec.OfInt ofInt(String sqlType) {
+        return new ColumnCodec.OfInt() {
+            public String getSqlType() { return sqlType; }
+            public void bindInt(PreparedStatement stmt, int index, int value) throws SQLException { stmt.setInt(index, value); }
+            public int readInt(ResultSet rs, int index) throws SQLException { return rs.getInt(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.INTEGER);
+                else stmt.setInt(index, ((Number) value).intValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                int value = rs.getInt(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfLong ofLong(String sqlType) {
+        return new ColumnCodec.OfLong() {
+            public String getSqlType() { return sqlType; }
+            public void bindLong(PreparedStatement stmt, int index, long value) throws SQLException { stmt.setLong(index, value); }
+            public long readLong(ResultSet rs, int index) throws SQLException { return rs.getLong(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.BIGINT);
+                else stmt.setLong(index, ((Number) value).longValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                long value = rs.getLong(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfDouble ofDouble(String sqlType) {
+        return new ColumnCodec.OfDouble() {
+            public String getSqlType() { return sqlType; }
+            public void bindDouble(PreparedStatement stmt, int index, double value) throws SQLException { stmt.setDouble(index, value); }
+            public double readDouble(ResultSet rs, int index) throws SQLException { return rs.getDouble(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.DOUBLE);
+                else stmt.setDouble(index, ((Number) value).doubleValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                double value = rs.getDouble(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfFloat ofFloat(String sqlType) {
+        return new ColumnCodec.OfFloat() {
+            public String getSqlType() { return sqlType; }
+            public void bindFloat(PreparedStatement stmt, int index, float value) throws SQLException { stmt.setFloat(index, value); }
+            public float readFloat(ResultSet rs, int index) throws SQLException { return rs.getFloat(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.REAL);
+                else stmt.setFloat(index, ((Number) value).floatValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                float value = rs.getFloat(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfBoolean ofBoolean(String sqlType) {
+        return new ColumnCodec.OfBoolean() {
+            public String getSqlType() { return sqlType; }
+            public void bindBoolean(PreparedStatement stmt, int index, boolean value) throws SQLException { stmt.setBoolean(index, value); }
+            public boolean readBoolean(ResultSet rs, int index) throws SQLException { return rs.getBoolean(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.BOOLEAN);
+                else stmt.setBoolean(index, (Boolean) value);
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                boolean value = rs.getBoolean(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfShort ofShort(String sqlType) {
+        return new ColumnCodec.OfShort() {
+            public String getSqlType() { return sqlType; }
+            public void bindShort(PreparedStatement stmt, int index, short value) throws SQLException { stmt.setShort(index, value); }
+            public short readShort(ResultSet rs, int index) throws SQLException { return rs.getShort(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.SMALLINT);
+                else stmt.setShort(index, ((Number) value).shortValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                short value = rs.getShort(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+
+    public static ColumnCodec.OfByte ofByte(String sqlType) {
+        return new ColumnCodec.OfByte() {
+            public String getSqlType() { return sqlType; }
+            public void bindByte(PreparedStatement stmt, int index, byte value) throws SQLException { stmt.setByte(index, value); }
+            public byte readByte(ResultSet rs, int index) throws SQLException { return rs.getByte(index); }
+
+            public void bind(PreparedStatement stmt, int index, Object value) throws SQLException {
+                if (value == null) stmt.setNull(index, Types.TINYINT);
+                else stmt.setByte(index, ((Number) value).byteValue());
+            }
+
+            public Object read(ResultSet rs, int index) throws SQLException {
+                byte value = rs.getByte(index);
+                return rs.wasNull() ? null : value;
+            }
+        };
+    }
+}
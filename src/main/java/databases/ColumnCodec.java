@@ -0,0 +1,53 @@
+package databases;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    Binds and reads values of one Java type and names its column type for DDL.
+    The nested primitive interfaces let mappers move primitive fields without boxing.
+ */
+public interface ColumnCodec {
+
+    String getSqlType();
+
+    void bind(PreparedStatement stmt, int index, Object value) throws SQLException;
+
+    Object read(ResultSet rs, int index) throws SQLException;
+
+    interface OfInt extends ColumnCodec {
+        void bindInt(PreparedStatement stmt, int index, int value) throws SQLException;
+        int readInt(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfLong extends ColumnCodec {
+        void bindLong(PreparedStatement stmt, int index, long value) throws SQLException;
+        long readLong(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfDouble extends ColumnCodec {
+        void bindDouble(PreparedStatement stmt, int index, double value) throws SQLException;
+        double readDouble(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfFloat extends ColumnCodec {
+        void bindFloat(PreparedStatement stmt, int index, float value) throws SQLException;
+        float readFloat(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfBoolean extends ColumnCodec {
+        void bindBoolean(PreparedStatement stmt, int index, boolean value) throws SQLException;
+        boolean readBoolean(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfShort extends ColumnCodec {
+        void bindShort(PreparedStatement stmt, int index, short value) throws SQLException;
+        short readShort(ResultSet rs, int index) throws SQLException;
+    }
+
+    interface OfByte extends ColumnCodec {
+        void bindByte(PreparedStatement stmt, int index, byte value) throws SQLException;
+        byte readByte(ResultSet rs, int index) throws SQLException;
+    }
+}
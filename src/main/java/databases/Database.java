@@ -1,6 +1,171 @@
 package databases;
 
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
 public abstract class Database {
     public abstract String getUrl();
     public abstract String getSqlType(String javaType);
+
+    /*
+        Single-row insert that updates every other column when a row with the same id exists.
+        Parameters are the columns in the given order, like the INSERT of an entity.
+     */
+    public abstract String getUpsertSql(String tableName, List<String> columns, String idColumn);
+
+    private final Map<Class<?>, ColumnCodec> codecs = new ConcurrentHashMap<>();
+
+    protected Database() {
+        registerCodec(int.class, Codecs.ofInt(getSqlType("int")));
+        registerCodec(Integer.class, Codecs.ofInt(getSqlType("Integer")));
+        registerCodec(long.class, Codecs.ofLong(getSqlType("long")));
+        registerCodec(Long.class, Codecs.ofLong(getSqlType("Long")));
+        registerCodec(double.class, Codecs.ofDouble(getSqlType("double")));
+        registerCodec(Double.class, Codecs.ofDouble(getSqlType("Double")));
+        registerCodec(float.class, Codecs.ofFloat(getSqlType("float")));
+        registerCodec(Float.class, Codecs.ofFloat(getSqlType("Float")));
+        registerCodec(boolean.class, Codecs.ofBoolean(getSqlType("boolean")));
+        registerCodec(Boolean.class, Codecs.ofBoolean(getSqlType("Boolean")));
+        registerCodec(short.class, Codecs.ofShort(getSqlType("short")));
+        registerCodec(Short.class, Codecs.ofShort(getSqlType("Short")));
+        registerCodec(byte.class, Codecs.ofByte(getSqlType("byte")));
+        registerCodec(Byte.class, Codecs.ofByte(getSqlType("Byte")));
+        registerCodec(String.class, Codecs.ofString(getSqlType("String")));
+        registerCodec(BigDecimal.class, Codecs.of(BigDecimal.class, getSqlType("BigDecimal"), Types.DECIMAL,
+                PreparedStatement::setBigDecimal, ResultSet::getBigDecimal));
+        registerCodec(byte[].class, Codecs.of(byte[].class, getSqlType("byte[]"), Types.VARBINARY,
+                PreparedStatement::setBytes, ResultSet::getBytes));
+        registerCodec(LocalDate.class, Codecs.ofJdbcObject(LocalDate.class, getSqlType("LocalDate"), Types.DATE));
+        registerCodec(LocalDateTime.class, Codecs.ofJdbcObject(LocalDateTime.class, getSqlType("LocalDateTime"), Types.TIMESTAMP));
+        registerCodec(LocalTime.class, Codecs.ofJdbcObject(LocalTime.class, getSqlType("LocalTime"), Types.TIME));
+        registerCodec(OffsetDateTime.class, Codecs.ofJdbcObject(OffsetDateTime.class, getSqlType("OffsetDateTime"),
+                Types.TIMESTAMP_WITH_TIMEZONE));
+        registerCodec(Instant.class, Codecs.ofInstant(getSqlType("Instant")));
+        registerCodec(UUID.class, Codecs.of(UUID.class, getSqlType("UUID"), Types.VARCHAR,
+                (stmt, index, value) -> stmt.setString(index, value.toString()),
+                (rs, index) -> {
+                    String value = rs.getString(index);
+                    return value == null ? null : UUID.fromString(value);
+                }));
+    }
+
+    /*
+        Registers or replaces the codec for a Java type, e.g. to use a native column type of the dialect
+     */
+    public void registerCodec(Class<?> javaType, ColumnCodec codec) {
+        codecs.put(javaType, codec);
+    }
+
+    /*
+        Codec for a Java type. Enums are stored by name; types without a codec fall back to setObject/getObject.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ColumnCodec getCodec(Class<?> javaType) {
+        ColumnCodec codec = codecs.get(javaType);
+        if (codec != null) return codec;
+        if (javaType.isEnum()) {
+            return codecs.computeIfAbsent(javaType, t -> Codecs.ofEnum((Class) t, getSqlType("Enum")));
+        }
+        return codecs.computeIfAbsent(javaType, t -> Codecs.ofObject(getSqlType(t.getSimpleName())));
+    }
+
+    public String getSqlType(Class<?> javaType) {
+        return getCodec(javaType).getSqlType();
+    }
+
+    /*
+        Largest number of bind parameters the driver accepts in a single statement
+     */
+    public int getMaxParameters() {
+        return 32767;
+    }
+
+    /*
+        Largest number of values in one IN (...) list
+     */
+    public int getMaxInListSize() {
+        return getMaxParameters();
+    }
+
+    /*
+        Condition matching a column against every element of a single array parameter, used instead of IN lists
+        for id types getArrayElementType() supports. Null if the dialect has no array binding.
+     */
+    public String getArrayMatchSql(String column) {
+        return null;
+    }
+
+    /*
+        Type name to pass to Connection.createArrayOf for an array of the Java type, or null if unsupported
+     */
+    public String getArrayElementType(Class<?> javaType) {
+        return null;
+    }
+
+    /*
+        Appends a bound row limit and offset to a SELECT, see bindLimitOffset
+     */
+    public String getLimitOffsetSql(String sql) {
+        return sql + " LIMIT ? OFFSET ?";
+    }
+
+    /*
+        Binds the parameters added by getLimitOffsetSql starting at index, returning the next free index
+     */
+    public int bindLimitOffset(PreparedStatement stmt, int index, int limit, long offset) throws SQLException {
+        stmt.setInt(index, limit);
+        stmt.setLong(index + 1, offset);
+        return index + 2;
+    }
+
+    public String getLimitSql(String sql) {
+        return sql + " LIMIT ?";
+    }
+
+    public int bindLimit(PreparedStatement stmt, int index, int limit) throws SQLException {
+        stmt.setInt(index, limit);
+        return index + 1;
+    }
+
+    /*
+        Whether the driver only streams rows through a server-side cursor when auto-commit is off
+     */
+    public boolean requiresTransactionForCursor() {
+        return false;
+    }
+
+    /*
+        Fetch size to use for streaming queries given the configured one
+     */
+    public int getStreamingFetchSize(int fetchSize) {
+        return fetchSize;
+    }
+
+    /*
+        INSERT of several rows in one statement, used by saveAll in multi-row mode
+     */
+    public String getMultiRowInsertSql(String tableName, List<String> columns, int rows) {
+        String row = "(" + "?,".repeat(columns.size());
+        row = row.substring(0, row.length() - 1) + ")";
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(tableName).append(" (").append(String.join(", ", columns)).append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) sql.append(",");
+            sql.append(row);
+        }
+        return sql.toString();
+    }
 }
@@ -1,5 +1,6 @@
 package databases;
 
+import java.util.List;
 import java.util.Map;
 
 public class MySQL extends Database {
@@ -15,7 +16,20 @@ public class MySQL extends Database {
             Map.entry("Float", "FLOAT"),
             Map.entry("boolean", "TINYINT(1)"),
             Map.entry("Boolean", "TINYINT(1)"),
-            Map.entry("String", "VARCHAR(500)")
+            Map.entry("String", "VARCHAR(500)"),
+            Map.entry("short", "SMALLINT"),
+            Map.entry("Short", "SMALLINT"),
+            Map.entry("byte", "TINYINT"),
+            Map.entry("Byte", "TINYINT"),
+            Map.entry("BigDecimal", "DECIMAL(38, 10)"),
+            Map.entry("LocalDate", "DATE"),
+            Map.entry("LocalDateTime", "DATETIME(6)"),
+            Map.entry("LocalTime", "TIME(6)"),
+            Map.entry("OffsetDateTime", "TIMESTAMP(6)"),
+            Map.entry("Instant", "TIMESTAMP(6)"),
+            Map.entry("UUID", "CHAR(36)"),
+            Map.entry("byte[]", "LONGBLOB"),
+            Map.entry("Enum", "VARCHAR(100)")
     );
 
     @Override
@@ -25,4 +39,38 @@ public class MySQL extends Database {
     public String getSqlType(String javaType) {
         return typeMaps.getOrDefault(javaType, "TEXT");
     }
+
+    // Connector/J only streams row by row with this sentinel fetch size (unless useCursorFetch is set on the URL)
+    @Override
+    public int getStreamingFetchSize(int fetchSize) {
+        return Integer.MIN_VALUE;
+    }
+
+    @Override
+    public int getMaxParameters() {
+        return 65535;
+    }
+
+    /*
+        Affected rows are 1 for an insert and 2 for an update, as reported by MySQL.
+        Uses the row alias form of ON DUPLICATE KEY UPDATE, which needs MySQL 8.0.19 or later
+     */
+    @Override
+    public String getUpsertSql(String tableName, List<String> columns, String idColumn) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(tableName).append(" (").append(String.join(", ", columns)).append(") VALUES (");
+        sql.append("?,".repeat(columns.size()));
+        sql.setLength(sql.length() - 1);
+        sql.append(") AS new ON DUPLICATE KEY UPDATE ");
+
+        boolean first = true;
+        for (String column : columns) {
+            if (column.equals(idColumn)) continue;
+            if (!first) sql.append(", ");
+            sql.append(column).append(" = new.").append(column);
+            first = false;
+        }
+        if (first) sql.append(idColumn).append(" = ").append(idColumn);
+        return sql.toString();
+    }
 }
@@ -1,5 +1,8 @@
 package databases;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 
 public class Oracle extends Database {
@@ -15,7 +18,19 @@ public class Oracle extends Database {
             Map.entry("Float", "BINARY_FLOAT"),
             Map.entry("boolean", "NUMBER(1)"),
             Map.entry("Boolean", "NUMBER(1)"),
-            Map.entry("String", "VARCHAR2(500)")
+            Map.entry("String", "VARCHAR2(500)"),
+            Map.entry("short", "NUMBER(5)"),
+            Map.entry("Short", "NUMBER(5)"),
+            Map.entry("byte", "NUMBER(3)"),
+            Map.entry("Byte", "NUMBER(3)"),
+            Map.entry("BigDecimal", "NUMBER(38, 10)"),
+            Map.entry("LocalDate", "DATE"),
+            Map.entry("LocalDateTime", "TIMESTAMP"),
+            Map.entry("OffsetDateTime", "TIMESTAMP WITH TIME ZONE"),
+            Map.entry("Instant", "TIMESTAMP WITH TIME ZONE"),
+            Map.entry("UUID", "VARCHAR2(36)"),
+            Map.entry("byte[]", "BLOB"),
+            Map.entry("Enum", "VARCHAR2(100)")
     );
 
     @Override
@@ -25,4 +40,70 @@ public class Oracle extends Database {
     public String getSqlType(String javaType) {
         return typeMaps.getOrDefault(javaType, "CLOB");
     }
+
+    @Override
+    public int getMaxInListSize() {
+        return 1000;
+    }
+
+    @Override
+    public String getLimitOffsetSql(String sql) {
+        return sql + " OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+    }
+
+    @Override
+    public int bindLimitOffset(PreparedStatement stmt, int index, int limit, long offset) throws SQLException {
+        stmt.setLong(index, offset);
+        stmt.setInt(index + 1, limit);
+        return index + 2;
+    }
+
+    @Override
+    public String getLimitSql(String sql) {
+        return sql + " FETCH FIRST ? ROWS ONLY";
+    }
+
+    @Override
+    public int getMaxParameters() {
+        return 65535;
+    }
+
+    // Oracle has no multi-row VALUES list, INSERT ALL ... SELECT FROM DUAL is the equivalent
+    @Override
+    public String getMultiRowInsertSql(String tableName, List<String> columns, int rows) {
+        String into = " INTO " + tableName + " (" + String.join(", ", columns) + ") VALUES ("
+                + "?,".repeat(columns.size());
+        into = into.substring(0, into.length() - 1) + ")";
+
+        StringBuilder sql = new StringBuilder("INSERT ALL");
+        for (int i = 0; i < rows; i++) sql.append(into);
+        sql.append(" SELECT 1 FROM DUAL");
+        return sql.toString();
+    }
+
+    @Override
+    public String getUpsertSql(String tableName, List<String> columns, String idColumn) {
+        StringBuilder source = new StringBuilder();
+        StringBuilder set = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String column : columns) {
+            if (source.length() > 0) {
+                source.append(", ");
+                values.append(", ");
+            }
+            source.append("? ").append(column);
+            values.append("s.").append(column);
+            if (column.equals(idColumn)) continue;
+            if (set.length() > 0) set.append(", ");
+            set.append("t.").append(column).append(" = s.").append(column);
+        }
+
+        StringBuilder sql = new StringBuilder("MERGE INTO ");
+        sql.append(tableName).append(" t USING (SELECT ").append(source).append(" FROM DUAL) s ON (t.")
+                .append(idColumn).append(" = s.").append(idColumn).append(")");
+        if (set.length() > 0) sql.append(" WHEN MATCHED THEN UPDATE SET ").append(set);
+        sql.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", columns))
+                .append(") VALUES (").append(values).append(")");
+        return sql.toString();
+    }
 }
@@ -1,6 +1,9 @@
 package databases;
 
+import java.sql.Types;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public class PostgreSQL extends Database {
 
@@ -15,10 +18,27 @@ public class PostgreSQL extends Database {
             Map.entry("Float", "REAL"),
             Map.entry("boolean", "BOOLEAN"),
             Map.entry("Boolean", "BOOLEAN"),
-            Map.entry("String", "VARCHAR(500)")
+            Map.entry("String", "VARCHAR(500)"),
+            Map.entry("short", "SMALLINT"),
+            Map.entry("Short", "SMALLINT"),
+            Map.entry("byte", "SMALLINT"),
+            Map.entry("Byte", "SMALLINT"),
+            Map.entry("BigDecimal", "NUMERIC(38, 10)"),
+            Map.entry("LocalDate", "DATE"),
+            Map.entry("LocalDateTime", "TIMESTAMP"),
+            Map.entry("LocalTime", "TIME"),
+            Map.entry("OffsetDateTime", "TIMESTAMPTZ"),
+            Map.entry("Instant", "TIMESTAMPTZ"),
+            Map.entry("UUID", "UUID"),
+            Map.entry("byte[]", "BYTEA"),
+            Map.entry("Enum", "VARCHAR(100)")
     );
 
 
+    public PostgreSQL() {
+        registerCodec(UUID.class, Codecs.ofJdbcObject(UUID.class, getSqlType("UUID"), Types.OTHER));
+    }
+
     @Override
     public String getUrl() { return "jdbc:postgresql://localhost:5432/"; }
 
@@ -26,5 +46,42 @@ public class PostgreSQL extends Database {
     public String getSqlType(String javaType) {
         return typeMaps.getOrDefault(javaType, "TEXT");
     }
-}
 
+    @Override
+    public String getArrayMatchSql(String column) {
+        return column + " = ANY(?)";
+    }
+
+    @Override
+    public String getArrayElementType(Class<?> javaType) {
+        if (javaType == int.class || javaType == Integer.class) return "int4";
+        if (javaType == long.class || javaType == Long.class) return "int8";
+        if (javaType == short.class || javaType == Short.class) return "int2";
+        if (javaType == String.class) return "varchar";
+        if (javaType == UUID.class) return "uuid";
+        return null;
+    }
+
+    @Override
+    public boolean requiresTransactionForCursor() {
+        return true;
+    }
+
+    @Override
+    public String getUpsertSql(String tableName, List<String> columns, String idColumn) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(tableName).append(" (").append(String.join(", ", columns)).append(") VALUES (");
+        sql.append("?,".repeat(columns.size()));
+        sql.setLength(sql.length() - 1);
+        sql.append(") ON CONFLICT (").append(idColumn).append(") DO ");
+
+        StringBuilder set = new StringBuilder();
+        for (String column : columns) {
+            if (column.equals(idColumn)) continue;
+            if (set.length() > 0) set.append(", ");
+            set.append(column).append(" = EXCLUDED.").append(column);
+        }
+        sql.append(set.length() == 0 ? "NOTHING" : "UPDATE SET " + set);
+        return sql.toString();
+    }
+}
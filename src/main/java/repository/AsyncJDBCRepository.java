@@ -0,0 +1,31 @@
+package repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/*
+    Non-blocking counterpart of SimpleJDBCRepository. Every call runs on SQLConnection.getAsyncExecutor(),
+    so independent lookups can be started together and joined once. Derived and custom query methods of a
+    repository may also return CompletableFuture.
+ */
+public interface AsyncJDBCRepository<T, ID> {
+
+    CompletableFuture<Integer> save(T obj);
+    CompletableFuture<T> findById(ID id);
+    CompletableFuture<Integer> delete(ID id);
+    CompletableFuture<Boolean> existsById(ID id);
+
+    CompletableFuture<Map<ID, T>> findAllById(Collection<ID> ids);
+    CompletableFuture<Integer> deleteAllById(Collection<ID> ids);
+    CompletableFuture<Boolean> existsAllById(Collection<ID> ids);
+
+    CompletableFuture<List<T>> findAll();
+    CompletableFuture<List<T>> findAll(Sort sort);
+    CompletableFuture<Page<T>> findAll(Pageable pageable);
+
+    CompletableFuture<int[]> saveAll(List<T> entities);
+    CompletableFuture<Integer> upsert(T obj);
+    CompletableFuture<int[]> upsertAll(List<T> entities);
+}
@@ -0,0 +1,187 @@
+package repository;
+
+import databases.ColumnCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Transactional batch writes shared by saveAll and Session flushes.
+    Statements are sent in batches of SQLConnection.getBatchSize() on a connection borrowed for the whole transaction.
+ */
+public class BatchWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchWriter.class);
+
+    private final SQLConnection sqlConnection;
+
+    public BatchWriter(SQLConnection sqlConnection) {
+        this.sqlConnection = sqlConnection;
+    }
+
+    public interface Work<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    public interface ItemBinder {
+        void bind(PreparedStatement stmt, Object item) throws SQLException;
+    }
+
+    /*
+        Runs work on one borrowed connection with auto-commit off, committing on success and rolling back on failure
+     */
+    public <T> T inTransaction(Work<T> work) {
+        sqlConnection.markWrite();
+        Connection conn;
+        try {
+            conn = sqlConnection.acquire();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            conn.setAutoCommit(false);
+            T result = work.run(conn);
+            conn.commit();
+            return result;
+        } catch (Exception e) {
+            try { conn.rollback(); } catch (SQLException ignored) {}
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        } finally {
+            try { conn.setAutoCommit(true); } catch (SQLException ignored) {}
+            sqlConnection.release(conn);
+        }
+    }
+
+    /*
+        Inserts the entities with JDBC batches, or with multi-row INSERTs when enabled on the SQLConnection.
+        Returns the rows written per batch, or Statement.SUCCESS_NO_INFO where the driver did not report them.
+     */
+    public int[] insert(Connection conn, EntityMetadata metadata, List<?> entities) throws SQLException {
+        if (sqlConnection.isMultiRowInsert()) return insertMultiRow(conn, metadata, entities);
+        return executeBatched(conn, metadata.getInsertSql(), entities,
+                (stmt, entity) -> metadata.bindValues(sqlConnection.getDatabase(), entity, stmt, 1));
+    }
+
+    /*
+        Updates the changed columns of previously loaded or saved entities. Entities are grouped by the set of
+        changed columns and every group is sent as JDBC batches of one UPDATE statement. Unchanged entities are skipped.
+     */
+    public int[] update(Connection conn, EntityMetadata metadata, List<?> entities) throws SQLException {
+        Map<BitSet, List<Object>> groups = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            BitSet changed = metadata.changedColumns(metadata.snapshotOf(entity), metadata.valuesOf(entity));
+            if (!changed.isEmpty()) groups.computeIfAbsent(changed, c -> new ArrayList<>()).add(entity);
+        }
+
+        int[] results = new int[0];
+        for (Map.Entry<BitSet, List<Object>> group : groups.entrySet()) {
+            BitSet changed = group.getKey();
+            int[] counts = executeBatched(conn, metadata.updateSql(changed), group.getValue(), (stmt, entity) ->
+                    metadata.bindUpdate(sqlConnection.getDatabase(), entity, changed, metadata.snapshotOf(entity), stmt));
+            results = concat(results, counts);
+        }
+        return results;
+    }
+
+    /*
+        Inserts or updates every entity through the dialect upsert statement, as JDBC batches
+     */
+    public int[] upsert(Connection conn, EntityMetadata metadata, List<?> entities) throws SQLException {
+        return executeBatched(conn, metadata.getUpsertSql(sqlConnection.getDatabase()), entities,
+                (stmt, entity) -> metadata.bindValues(sqlConnection.getDatabase(), entity, stmt, 1));
+    }
+
+    public int[] deleteByIds(Connection conn, EntityMetadata metadata, List<?> ids) throws SQLException {
+        ColumnCodec idCodec = metadata.getIdCodec(sqlConnection.getDatabase());
+        return executeBatched(conn, metadata.getDeleteByIdSql(), ids, (stmt, id) -> idCodec.bind(stmt, 1, id));
+    }
+
+    public int executeUpdate(Connection conn, String sql, QueryPlan.ParameterBinder binder) throws SQLException {
+        PreparedStatement stmt = sqlConnection.prepareStatement(conn, sql);
+        try {
+            binder.bind(stmt, null);
+            int rows = stmt.executeUpdate();
+            if (sqlConnection.getLogsEnabled()) log.info(sql);
+            return rows;
+        } finally {
+            sqlConnection.closeStatement(conn, sql, stmt);
+        }
+    }
+
+    /*
+        Executes sql once per item as JDBC batches, returning the summed update count of each batch
+     */
+    public int[] executeBatched(Connection conn, String sql, List<?> items, ItemBinder binder) throws SQLException {
+        int batchSize = sqlConnection.getBatchSize();
+        int[] results = new int[(items.size() + batchSize - 1) / batchSize];
+        PreparedStatement stmt = sqlConnection.prepareStatement(conn, sql);
+        try {
+            int pending = 0;
+            int batch = 0;
+            for (Object item : items) {
+                binder.bind(stmt, item);
+                stmt.addBatch();
+                if (++pending == batchSize) {
+                    results[batch++] = sumCounts(stmt.executeBatch());
+                    if (sqlConnection.getLogsEnabled()) log.info("{} [batch of {}]", sql, pending);
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                results[batch] = sumCounts(stmt.executeBatch());
+                if (sqlConnection.getLogsEnabled()) log.info("{} [batch of {}]", sql, pending);
+            }
+            return results;
+        } finally {
+            sqlConnection.closeStatement(conn, sql, stmt);
+        }
+    }
+
+    private int[] insertMultiRow(Connection conn, EntityMetadata metadata, List<?> entities) throws SQLException {
+        int columns = metadata.getColumns().size();
+        int rowsPerStatement = Math.max(1, Math.min(sqlConnection.getBatchSize(),
+                sqlConnection.getDatabase().getMaxParameters() / columns));
+        int[] results = new int[(entities.size() + rowsPerStatement - 1) / rowsPerStatement];
+
+        for (int start = 0, batch = 0; start < entities.size(); start += rowsPerStatement, batch++) {
+            List<?> chunk = entities.subList(start, Math.min(entities.size(), start + rowsPerStatement));
+            String sql = sqlConnection.getDatabase().getMultiRowInsertSql(metadata.getTableName(), metadata.getColumns(), chunk.size());
+            PreparedStatement stmt = sqlConnection.prepareStatement(conn, sql);
+            try {
+                int index = 1;
+                for (Object entity : chunk) index = metadata.bindValues(sqlConnection.getDatabase(), entity, stmt, index);
+                results[batch] = stmt.executeUpdate();
+                if (sqlConnection.getLogsEnabled()) log.info("{} [{} rows]", metadata.getInsertSql(), chunk.size());
+            } finally {
+                sqlConnection.closeStatement(conn, sql, stmt);
+            }
+        }
+        return results;
+    }
+
+    static int[] concat(int[] first, int[] second) {
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static int sumCounts(int[] counts) {
+        int sum = 0;
+        for (int count : counts) {
+            if (count < 0) return Statement.SUCCESS_NO_INFO;
+            sum += count;
+        }
+        return sum;
+    }
+}
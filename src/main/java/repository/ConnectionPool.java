@@ -0,0 +1,222 @@
+package repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+    Bounded JDBC connection pool. A semaphore caps the number of borrowed connections and idle
+    connections sit on a lock-free deque, so borrowing and returning never take a monitor lock.
+    Borrowed connections are tracked by identity, so a connection released twice is returned to the pool once.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final ConnectionFactory factory;
+    private final PoolConfig config;
+    private final Semaphore permits;
+    private final Deque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<Borrowed> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile Consumer<Connection> discardListener;
+    private volatile boolean closed;
+
+    public ConnectionPool(ConnectionFactory factory, PoolConfig config) throws SQLException {
+        this.factory = factory;
+        this.config = config;
+        this.permits = new Semaphore(config.getMaxSize());
+
+        try {
+            for (int i = 0; i < config.getMinSize(); i++) {
+                idle.push(new IdleConnection(open()));
+            }
+        } catch (SQLException | RuntimeException e) {
+            /* the caller never gets the pool, so close what was opened before the failure */
+            IdleConnection opened;
+            while ((opened = idle.poll()) != null) discard(opened.connection);
+            throw e;
+        }
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1_000, config.getIdleTimeoutMillis() / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection acquire() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        try {
+            if (!permits.tryAcquire(config.getAcquireTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + config.getAcquireTimeoutMillis()
+                        + "ms waiting for a connection (max pool size " + config.getMaxSize() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            IdleConnection candidate;
+            while ((candidate = idle.poll()) != null) {
+                if (isUsable(candidate)) return borrow(candidate.connection);
+                discard(candidate.connection);
+            }
+            return borrow(open());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection conn) {
+        if (conn == null) return;
+        if (!borrowed.remove(new Borrowed(conn))) {
+            log.warn("Ignoring release of a connection that is not borrowed from this pool");
+            return;
+        }
+        try {
+            if (closed || conn.isClosed()) {
+                discard(conn);
+                return;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            idle.push(new IdleConnection(conn));
+        } catch (SQLException e) {
+            discard(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /*
+        Called before a connection is closed by the pool, e.g. to drop statements cached for it
+     */
+    public void setDiscardListener(Consumer<Connection> discardListener) {
+        this.discardListener = discardListener;
+    }
+
+    public int getMaxSize() {
+        return config.getMaxSize();
+    }
+
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getActiveConnections() {
+        return config.getMaxSize() - permits.availablePermits();
+    }
+
+    public int getWaitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        IdleConnection candidate;
+        while ((candidate = idle.poll()) != null) discard(candidate.connection);
+    }
+
+    private boolean isUsable(IdleConnection candidate) {
+        if (System.currentTimeMillis() - candidate.lastUsed < config.getValidationIntervalMillis()) return true;
+        try {
+            return candidate.connection.isValid(config.getValidationTimeoutSeconds());
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - config.getIdleTimeoutMillis();
+        for (IdleConnection candidate : idle) {
+            if (total.get() <= config.getMinSize()) break;
+            if (candidate.lastUsed < cutoff && idle.remove(candidate)) {
+                discard(candidate.connection);
+            }
+        }
+    }
+
+    private Connection borrow(Connection conn) {
+        borrowed.add(new Borrowed(conn));
+        return conn;
+    }
+
+    private Connection open() throws SQLException {
+        Connection conn = factory.create();
+        total.incrementAndGet();
+        return conn;
+    }
+
+    private void discard(Connection conn) {
+        total.decrementAndGet();
+        Consumer<Connection> listener = discardListener;
+        if (listener != null) listener.accept(conn);
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close pooled connection", e);
+        }
+    }
+
+    /*
+        Identity key, as Connection implementations may override equals
+     */
+    private static final class Borrowed {
+        private final Connection connection;
+
+        private Borrowed(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Borrowed && ((Borrowed) o).connection == connection;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(connection);
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection connection;
+        private final long lastUsed;
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    @CustomQuery text split into JDBC SQL and its placeholders. :name placeholders are replaced by ?, while
+    string literals, quoted identifiers, comments and PostgreSQL :: casts are copied unchanged.
+    A statement uses either positional or named placeholders, not both.
+ */
+public class CustomStatement {
+
+    private static final Pattern LITERALS_AND_COMMENTS =
+            Pattern.compile("(?s)'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|--[^\\n]*|/\\*.*?\\*/");
+    private static final Pattern MODIFYING = Pattern.compile(
+            "(?i)\\b(INSERT|UPDATE|DELETE|MERGE)\\b|\\bFOR\\s+(KEY\\s+)?SHARE\\b");
+    private static final Pattern PARENTHESES = Pattern.compile("\\([^()]*\\)");
+    private static final Pattern MAIN_VERB = Pattern.compile("(?i)\\b(SELECT|VALUES|TABLE|INSERT|UPDATE|DELETE|MERGE)\\b");
+    private static final Pattern RETURNING = Pattern.compile("(?i)\\bRETURNING\\b");
+    private static final Pattern NOT_IN_LIST = Pattern.compile("(?is).*\\bNOT\\s+IN\\s*\\(\\s*$");
+
+    private final String text;
+    private final List<String> fragments;
+    private final List<String> names;
+    private final boolean named;
+    private final boolean query;
+    private final boolean readOnly;
+
+    private CustomStatement(String text, List<String> fragments, List<String> names, boolean named, boolean query) {
+        this.text = text;
+        this.fragments = fragments;
+        this.names = names;
+        this.named = named;
+        this.query = query;
+        this.readOnly = query && !MODIFYING.matcher(LITERALS_AND_COMMENTS.matcher(text).replaceAll(" ")).find();
+    }
+
+    public static CustomStatement parse(String text) {
+        List<String> fragments = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        boolean positional = false;
+        boolean named = false;
+        StringBuilder fragment = new StringBuilder();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '\'' || c == '"') {
+                int end = text.indexOf(c, i + 1);
+                while (end >= 0 && end + 1 < length && text.charAt(end + 1) == c) end = text.indexOf(c, end + 2);
+                if (end < 0) throw new IllegalArgumentException("Unterminated quote in custom query: " + text);
+                fragment.append(text, i, end + 1);
+                i = end + 1;
+            } else if (c == '-' && text.startsWith("--", i)) {
+                int end = text.indexOf('\n', i);
+                end = end < 0 ? length : end;
+                fragment.append(text, i, end);
+                i = end;
+            } else if (c == '/' && text.startsWith("/*", i)) {
+                int end = text.indexOf("*/", i + 2);
+                end = end < 0 ? length : end + 2;
+                fragment.append(text, i, end);
+                i = end;
+            } else if (c == ':' && i + 1 < length && text.charAt(i + 1) == ':') {
+                fragment.append("::");
+                i += 2;
+            } else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart(text.charAt(i + 1))) {
+                int end = i + 2;
+                while (end < length && Character.isJavaIdentifierPart(text.charAt(end))) end++;
+                names.add(text.substring(i + 1, end));
+                fragments.add(fragment.toString());
+                fragment.setLength(0);
+                named = true;
+                i = end;
+            } else if (c == '?') {
+                names.add(null);
+                fragments.add(fragment.toString());
+                fragment.setLength(0);
+                positional = true;
+                i++;
+            } else {
+                fragment.append(c);
+                i++;
+            }
+        }
+        fragments.add(fragment.toString());
+        if (named && positional) {
+            throw new IllegalArgumentException("Custom query mixes ? and :name placeholders: " + text);
+        }
+        return new CustomStatement(text, Collections.unmodifiableList(fragments), Collections.unmodifiableList(names),
+                named, isQuery(text));
+    }
+
+    private static boolean isQuery(String text) {
+        String statement = text.replaceAll("(?s)^(\\s|\\(|--[^\\n]*|/\\*.*?\\*/)*", "").toUpperCase(Locale.ROOT);
+        if (statement.startsWith("WITH")) return withReturnsRows(text);
+        return statement.startsWith("SELECT") || statement.startsWith("VALUES") || statement.startsWith("TABLE")
+                || statement.startsWith("SHOW");
+    }
+
+    /*
+        Whether a WITH statement returns rows: its main statement, found once the parenthesised CTE bodies are
+        removed, is a SELECT, VALUES or TABLE, or an INSERT, UPDATE, DELETE or MERGE with RETURNING
+     */
+    private static boolean withReturnsRows(String text) {
+        String outer = LITERALS_AND_COMMENTS.matcher(text).replaceAll(" ");
+        String previous;
+        do {
+            previous = outer;
+            outer = PARENTHESES.matcher(outer).replaceAll(" ");
+        } while (!outer.equals(previous));
+        Matcher verb = MAIN_VERB.matcher(outer);
+        if (!verb.find()) return true;
+        switch (verb.group(1).toUpperCase(Locale.ROOT)) {
+            case "SELECT":
+            case "VALUES":
+            case "TABLE":
+                return true;
+            default:
+                return RETURNING.matcher(outer).find();
+        }
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /*
+        Placeholder names in order of appearance, null entries for positional placeholders
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    public boolean isNamed() {
+        return named;
+    }
+
+    /*
+        Whether the statement returns rows (SELECT, VALUES, a WITH ending in one, ...) rather than an update count
+     */
+    public boolean isQuery() {
+        return query;
+    }
+
+    /*
+        Whether the statement only reads: a query that neither modifies rows, as a WITH holding an INSERT, UPDATE,
+        DELETE or MERGE does, nor locks them with FOR UPDATE/SHARE. Only these may run on a replica.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /*
+        JDBC SQL with one ? per placeholder
+     */
+    public String getSql() {
+        return getSql(null);
+    }
+
+    /*
+        JDBC SQL in which placeholder i expands to sizes[i] comma-separated markers, for collection arguments
+        of IN lists. A size of 0 renders IN (NULL), which stays valid and matches nothing; NOT IN (NULL) would
+        match nothing as well rather than everything, so an empty NOT IN list is rejected.
+     */
+    public String getSql(int[] sizes) {
+        StringBuilder sql = new StringBuilder(fragments.get(0));
+        for (int i = 0; i < names.size(); i++) {
+            int size = sizes == null ? 1 : sizes[i];
+            if (size == 0) {
+                if (NOT_IN_LIST.matcher(fragments.get(i)).matches()) {
+                    throw new IllegalArgumentException("Empty collection for a NOT IN list, which would match no rows: " + text);
+                }
+                sql.append("NULL");
+            } else {
+                sql.append("?,".repeat(size), 0, size * 2 - 1);
+            }
+            sql.append(fragments.get(i + 1));
+        }
+        return sql.toString();
+    }
+}
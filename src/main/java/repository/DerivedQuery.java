@@ -0,0 +1,435 @@
+package repository;
+
+import databases.Database;
+
+import java.lang.reflect.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Parsed form of a derived query method name such as findTop10ByAgeGreaterThanAndNameLikeOrderByAgeDesc.
+
+        (find|read|get|query|stream|search|count|exists|delete|remove) [Distinct] [Top|First[n]] ... By
+        <property><operator> ((And|Or) <property><operator>)* [OrderBy (<property>[Asc|Desc])+]
+
+    Operators: Is/Equals (default), Not, LessThan, LessThanEqual, GreaterThan, GreaterThanEqual, Before, After,
+    Between, In, NotIn, Like, NotLike, StartingWith, EndingWith, Containing, IsNull, IsNotNull, True, False.
+    And binds tighter than Or. Names are parsed once per entity and method name and shared by all repositories.
+ */
+public class DerivedQuery {
+
+    public enum Subject { FIND, COUNT, EXISTS, DELETE }
+
+    public enum Operator {
+        EQUALS(1), NOT_EQUALS(1), LESS_THAN(1), LESS_THAN_EQUAL(1), GREATER_THAN(1), GREATER_THAN_EQUAL(1),
+        BETWEEN(2), IN(1), NOT_IN(1), LIKE(1), NOT_LIKE(1), STARTING_WITH(1), ENDING_WITH(1), CONTAINING(1),
+        IS_NULL(0), IS_NOT_NULL(0), TRUE(0), FALSE(0);
+
+        private final int arguments;
+
+        Operator(int arguments) {
+            this.arguments = arguments;
+        }
+
+        public int getArguments() {
+            return arguments;
+        }
+    }
+
+    private static final Pattern NAME = Pattern.compile("^(find|read|get|query|stream|search|count|exists|delete|remove)(\\p{Lu}\\w*?)??By(.*)$");
+    private static final Pattern LIMIT = Pattern.compile("(?:Top|First)(\\d*)");
+    private static final Pattern ORDER_BY = Pattern.compile("OrderBy(?=\\p{Lu})");
+    private static final Pattern OR = Pattern.compile("Or(?=\\p{Lu})");
+    private static final Pattern AND = Pattern.compile("And(?=\\p{Lu})");
+    private static final Pattern DIRECTION = Pattern.compile("(Asc|Desc)(?=\\p{Lu}|$)");
+
+    private static final Object[][] KEYWORDS = {
+            {"IsNotNull", Operator.IS_NOT_NULL}, {"NotNull", Operator.IS_NOT_NULL},
+            {"IsNull", Operator.IS_NULL}, {"Null", Operator.IS_NULL},
+            {"IsNotIn", Operator.NOT_IN}, {"NotIn", Operator.NOT_IN},
+            {"IsIn", Operator.IN}, {"In", Operator.IN},
+            {"IsNotLike", Operator.NOT_LIKE}, {"NotLike", Operator.NOT_LIKE},
+            {"IsLike", Operator.LIKE}, {"Like", Operator.LIKE},
+            {"IsStartingWith", Operator.STARTING_WITH}, {"StartingWith", Operator.STARTING_WITH}, {"StartsWith", Operator.STARTING_WITH},
+            {"IsEndingWith", Operator.ENDING_WITH}, {"EndingWith", Operator.ENDING_WITH}, {"EndsWith", Operator.ENDING_WITH},
+            {"IsContaining", Operator.CONTAINING}, {"Containing", Operator.CONTAINING}, {"Contains", Operator.CONTAINING},
+            {"IsBetween", Operator.BETWEEN}, {"Between", Operator.BETWEEN},
+            {"IsLessThanEqual", Operator.LESS_THAN_EQUAL}, {"LessThanEqual", Operator.LESS_THAN_EQUAL},
+            {"IsLessThan", Operator.LESS_THAN}, {"LessThan", Operator.LESS_THAN}, {"IsBefore", Operator.LESS_THAN}, {"Before", Operator.LESS_THAN},
+            {"IsGreaterThanEqual", Operator.GREATER_THAN_EQUAL}, {"GreaterThanEqual", Operator.GREATER_THAN_EQUAL},
+            {"IsGreaterThan", Operator.GREATER_THAN}, {"GreaterThan", Operator.GREATER_THAN}, {"IsAfter", Operator.GREATER_THAN}, {"After", Operator.GREATER_THAN},
+            {"IsTrue", Operator.TRUE}, {"True", Operator.TRUE},
+            {"IsFalse", Operator.FALSE}, {"False", Operator.FALSE},
+            {"IsNot", Operator.NOT_EQUALS}, {"Not", Operator.NOT_EQUALS},
+            {"Is", Operator.EQUALS}, {"Equals", Operator.EQUALS},
+    };
+
+    /*
+        Escape character of StartingWith/EndingWith/Containing patterns; not a backslash, which MySQL string
+        literals would treat as an escape themselves
+     */
+    private static final char LIKE_ESCAPE = '!';
+
+    private static final Map<String, DerivedQuery> cache = new ConcurrentHashMap<>();
+    private static final DerivedQuery NOT_DERIVED = new DerivedQuery();
+
+    public static final class Condition {
+        private final int property;
+        private final String column;
+        private final Operator operator;
+
+        private Condition(int property, String column, Operator operator) {
+            this.property = property;
+            this.column = column;
+            this.operator = operator;
+        }
+
+        public int getProperty() {
+            return property;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+    }
+
+    private final Subject subject;
+    private final boolean distinct;
+    private final int limit;
+    private final List<List<Condition>> orGroups;
+    private final Sort sort;
+    private final int parameterCount;
+    private final boolean dynamic;
+
+    private DerivedQuery() {
+        this.subject = null;
+        this.distinct = false;
+        this.limit = 0;
+        this.orGroups = Collections.emptyList();
+        this.sort = Sort.unsorted();
+        this.parameterCount = 0;
+        this.dynamic = false;
+    }
+
+    private DerivedQuery(Subject subject, boolean distinct, int limit, List<List<Condition>> orGroups, Sort sort) {
+        this.subject = subject;
+        this.distinct = distinct;
+        this.limit = limit;
+        this.orGroups = orGroups;
+        this.sort = sort;
+        int parameters = 0;
+        boolean dynamic = false;
+        for (List<Condition> group : orGroups) {
+            for (Condition condition : group) {
+                parameters += condition.operator.arguments;
+                dynamic |= condition.operator == Operator.IN || condition.operator == Operator.NOT_IN;
+            }
+        }
+        this.parameterCount = parameters;
+        this.dynamic = dynamic;
+    }
+
+    /*
+        Parsed query for the method name, or null if the name does not follow the derived query grammar.
+        Throws IllegalArgumentException for names that do but refer to unknown properties.
+     */
+    public static DerivedQuery parse(EntityMetadata metadata, String methodName) {
+        String key = metadata.getEntityClass().getName() + "#" + methodName;
+        DerivedQuery query = cache.get(key);
+        if (query == null) {
+            query = doParse(metadata, methodName);
+            cache.putIfAbsent(key, query);
+        }
+        return query == NOT_DERIVED ? null : query;
+    }
+
+    private static DerivedQuery doParse(EntityMetadata metadata, String methodName) {
+        Matcher name = NAME.matcher(methodName);
+        if (!name.matches()) return NOT_DERIVED;
+
+        Subject subject;
+        switch (name.group(1)) {
+            case "count": subject = Subject.COUNT; break;
+            case "exists": subject = Subject.EXISTS; break;
+            case "delete":
+            case "remove": subject = Subject.DELETE; break;
+            default: subject = Subject.FIND;
+        }
+
+        String qualifiers = name.group(2) == null ? "" : name.group(2);
+        boolean distinct = qualifiers.contains("Distinct");
+        int limit = 0;
+        Matcher limitMatcher = LIMIT.matcher(qualifiers);
+        if (limitMatcher.find()) {
+            limit = limitMatcher.group(1).isEmpty() ? 1 : Integer.parseInt(limitMatcher.group(1));
+            if (limit < 1) throw new IllegalArgumentException("Top/First limit must be >= 1 in " + methodName);
+        }
+
+        String predicate = name.group(3);
+        Sort sort = Sort.unsorted();
+        Matcher orderBy = ORDER_BY.matcher(predicate);
+        if (orderBy.find()) {
+            sort = parseOrderBy(metadata, predicate.substring(orderBy.end()));
+            predicate = predicate.substring(0, orderBy.start());
+        }
+
+        List<List<Condition>> orGroups = new ArrayList<>();
+        if (!predicate.isEmpty()) {
+            for (String orPart : OR.split(predicate)) {
+                List<Condition> group = new ArrayList<>();
+                for (String part : AND.split(orPart)) group.add(parseCondition(metadata, part));
+                orGroups.add(group);
+            }
+        }
+        return new DerivedQuery(subject, distinct, limit, orGroups, sort);
+    }
+
+    private static Condition parseCondition(EntityMetadata metadata, String part) {
+        for (Object[] keyword : KEYWORDS) {
+            String suffix = (String) keyword[0];
+            if (part.length() <= suffix.length() || !part.endsWith(suffix)) continue;
+            int index = metadata.indexOfProperty(part.substring(0, part.length() - suffix.length()));
+            if (index < 0) continue;
+            Operator operator = (Operator) keyword[1];
+            if (isPattern(operator) && metadata.getFields().get(index).getType() != String.class) {
+                throw new IllegalArgumentException(suffix + " needs a String property: " + part);
+            }
+            boolean truth = operator == Operator.TRUE || operator == Operator.FALSE;
+            if (truth && !isBoolean(metadata.getFields().get(index).getType())) {
+                throw new IllegalArgumentException(suffix + " needs a boolean property: " + part);
+            }
+            return new Condition(index, metadata.getColumns().get(index), operator);
+        }
+        int index = metadata.indexOfProperty(part);
+        if (index < 0) throw new IllegalArgumentException("No matching field found for: " + part);
+        return new Condition(index, metadata.getColumns().get(index), Operator.EQUALS);
+    }
+
+    private static Sort parseOrderBy(EntityMetadata metadata, String clause) {
+        List<Sort.Order> orders = new ArrayList<>();
+        Matcher direction = DIRECTION.matcher(clause);
+        int start = 0;
+        while (direction.find()) {
+            orders.add(order(metadata, clause.substring(start, direction.start()),
+                    direction.group(1).equals("Desc") ? Sort.Direction.DESC : Sort.Direction.ASC));
+            start = direction.end();
+        }
+        if (start < clause.length()) orders.add(order(metadata, clause.substring(start), Sort.Direction.ASC));
+        if (orders.isEmpty()) throw new IllegalArgumentException("OrderBy without properties");
+
+        Sort sort = Sort.by(orders.get(0).getDirection(), orders.get(0).getProperty());
+        for (int i = 1; i < orders.size(); i++) {
+            sort = sort.and(Sort.by(orders.get(i).getDirection(), orders.get(i).getProperty()));
+        }
+        return sort;
+    }
+
+    private static Sort.Order order(EntityMetadata metadata, String property, Sort.Direction direction) {
+        int index = metadata.indexOfProperty(property);
+        if (index < 0) throw new IllegalArgumentException("No matching field found for sort property: " + property);
+        return new Sort.Order(metadata.getColumns().get(index), direction);
+    }
+
+    public Subject getSubject() {
+        return subject;
+    }
+
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    /*
+        Row limit of Top/First, 0 for none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public List<List<Condition>> getOrGroups() {
+        return orGroups;
+    }
+
+    public boolean hasConditions() {
+        return !orGroups.isEmpty();
+    }
+
+    /*
+        Number of method arguments consumed by the conditions
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /*
+        Whether the WHERE clause depends on the arguments, i.e. the size of In/NotIn collections
+     */
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    /*
+        Condition without the WHERE keyword, or null if there are no conditions. In lists are padded to a power of two
+        and split into several lists above the dialect limit, so only a few distinct statements are ever prepared.
+        args may be null for queries that are not dynamic.
+     */
+    public String where(Database database, Object[] args) {
+        if (orGroups.isEmpty()) return null;
+        StringBuilder sql = new StringBuilder();
+        int argument = 0;
+        for (List<Condition> group : orGroups) {
+            if (sql.length() > 0) sql.append(" OR ");
+            boolean first = true;
+            for (Condition condition : group) {
+                if (!first) sql.append(" AND ");
+                first = false;
+                appendCondition(sql, database, condition, args == null ? 0 : inSize(args[argument]));
+                argument += condition.operator.arguments;
+            }
+        }
+        return sql.toString();
+    }
+
+    private static void appendCondition(StringBuilder sql, Database database, Condition condition, int inSize) {
+        String column = condition.column;
+        switch (condition.operator) {
+            case EQUALS: sql.append(column).append(" = ?"); break;
+            case NOT_EQUALS: sql.append(column).append(" <> ?"); break;
+            case LESS_THAN: sql.append(column).append(" < ?"); break;
+            case LESS_THAN_EQUAL: sql.append(column).append(" <= ?"); break;
+            case GREATER_THAN: sql.append(column).append(" > ?"); break;
+            case GREATER_THAN_EQUAL: sql.append(column).append(" >= ?"); break;
+            case BETWEEN: sql.append(column).append(" BETWEEN ? AND ?"); break;
+            case LIKE: sql.append(column).append(" LIKE ?"); break;
+            case STARTING_WITH:
+            case ENDING_WITH:
+            case CONTAINING: sql.append(column).append(" LIKE ? ESCAPE '").append(LIKE_ESCAPE).append('\''); break;
+            case NOT_LIKE: sql.append(column).append(" NOT LIKE ?"); break;
+            case IS_NULL: sql.append(column).append(" IS NULL"); break;
+            case IS_NOT_NULL: sql.append(column).append(" IS NOT NULL"); break;
+            case TRUE:
+            case FALSE: sql.append(column).append(" = ?"); break;
+            case IN:
+            case NOT_IN:
+                boolean in = condition.operator == Operator.IN;
+                int size = padded(inSize);
+                if (size == 0) {
+                    sql.append(in ? "1 = 0" : "1 = 1");
+                    break;
+                }
+                int max = database.getMaxInListSize();
+                sql.append('(');
+                for (int start = 0; start < size; start += max) {
+                    if (start > 0) sql.append(in ? " OR " : " AND ");
+                    String list = "?,".repeat(Math.min(max, size - start));
+                    sql.append(column).append(in ? " IN (" : " NOT IN (").append(list, 0, list.length() - 1).append(')');
+                }
+                sql.append(')');
+                break;
+        }
+    }
+
+    /*
+        Binds the condition arguments starting at parameter index, returning the next free index
+     */
+    public int bind(PreparedStatement stmt, Object[] args, FieldBinding[] bindings, int index) throws SQLException {
+        int argument = 0;
+        for (List<Condition> group : orGroups) {
+            for (Condition condition : group) {
+                FieldBinding binding = bindings[condition.property];
+                switch (condition.operator) {
+                    case IS_NULL:
+                    case IS_NOT_NULL:
+                        break;
+                    case TRUE:
+                    case FALSE:
+                        binding.getCodec().bind(stmt, index++, condition.operator == Operator.TRUE);
+                        break;
+                    case STARTING_WITH:
+                    case ENDING_WITH:
+                    case CONTAINING:
+                        binding.getCodec().bind(stmt, index++, pattern(condition, args[argument]));
+                        break;
+                    case IN:
+                    case NOT_IN:
+                        List<Object> values = inValues(args[argument]);
+                        int size = padded(values.size());
+                        for (int i = 0; i < size; i++) {
+                            binding.getCodec().bind(stmt, index++, values.get(Math.min(i, values.size() - 1)));
+                        }
+                        break;
+                    default:
+                        for (int i = 0; i < condition.operator.arguments; i++) {
+                            binding.getCodec().bind(stmt, index++, args[argument + i]);
+                        }
+                }
+                argument += condition.operator.arguments;
+            }
+        }
+        return index;
+    }
+
+    private static boolean isPattern(Operator operator) {
+        return operator == Operator.STARTING_WITH || operator == Operator.ENDING_WITH || operator == Operator.CONTAINING;
+    }
+
+    private static boolean isBoolean(Class<?> type) {
+        return type == boolean.class || type == Boolean.class;
+    }
+
+    /*
+        LIKE pattern matching the argument literally, with its wildcards escaped
+     */
+    private static String pattern(Condition condition, Object argument) {
+        if (argument == null) {
+            throw new IllegalArgumentException("Null argument for " + condition.operator + " on " + condition.column);
+        }
+        String text = argument.toString();
+        StringBuilder escaped = new StringBuilder(text.length() + 2);
+        if (condition.operator != Operator.STARTING_WITH) escaped.append('%');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == LIKE_ESCAPE || c == '%' || c == '_') escaped.append(LIKE_ESCAPE);
+            escaped.append(c);
+        }
+        if (condition.operator != Operator.ENDING_WITH) escaped.append('%');
+        return escaped.toString();
+    }
+
+    private static int padded(int size) {
+        return size <= 1 ? size : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int inSize(Object argument) {
+        if (argument instanceof Collection) return ((Collection<?>) argument).size();
+        if (argument != null && argument.getClass().isArray()) return Array.getLength(argument);
+        return 1;
+    }
+
+    private static List<Object> inValues(Object argument) {
+        List<Object> values = new ArrayList<>();
+        if (argument instanceof Collection) {
+            values.addAll((Collection<?>) argument);
+        } else if (argument != null && argument.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(argument); i++) values.add(Array.get(argument, i));
+        } else {
+            values.add(argument);
+        }
+        return values;
+    }
+}
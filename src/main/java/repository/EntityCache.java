@@ -0,0 +1,209 @@
+package repository;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Second-level cache of entities by id, bounded with LRU eviction and an optional time to live.
+    Entries are spread over independently locked segments so concurrent readers of different ids rarely contend.
+    Every invalidation advances a generation, and a load only populates the cache if no invalidation happened
+    since it started, so a read racing a write cannot put back a stale row.
+ */
+public class EntityCache {
+
+    private final EntityMetadata metadata;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Segment[] segments;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public EntityCache(EntityMetadata metadata, int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) throw new IllegalArgumentException("Entity cache size must be >= 1");
+        if (ttlMillis < 0) throw new IllegalArgumentException("Entity cache TTL must be >= 0");
+        metadata.requireId();
+        this.metadata = metadata;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+
+        int count = 1;
+        while (count < 16 && count * 2 <= maxEntries) count *= 2;
+        this.segments = new Segment[count];
+        int perSegment = (maxEntries + count - 1) / count;
+        for (int i = 0; i < count; i++) segments[i] = new Segment(perSegment);
+    }
+
+    /*
+        Copy of the cached entity, or null on a miss. Callers may modify the returned instance freely.
+     */
+    public Object get(Object id) {
+        Object entity = segmentFor(id).get(id, System.nanoTime());
+        if (entity == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return metadata.copyOf(entity);
+    }
+
+    public boolean contains(Object id) {
+        return segmentFor(id).get(id, System.nanoTime()) != null;
+    }
+
+    /*
+        Generation to pass to put() for a value about to be loaded from the database
+     */
+    public long stamp() {
+        return generation.get();
+    }
+
+    public void put(Object id, Object entity, long stamp) {
+        if (id == null || entity == null) return;
+        segmentFor(id).put(id, metadata.copyOf(entity), stamp, System.nanoTime());
+    }
+
+    public void invalidate(Object id) {
+        if (id == null) return;
+        generation.incrementAndGet();
+        invalidations.increment();
+        segmentFor(id).remove(id);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        invalidations.increment();
+        for (Segment segment : segments) segment.clear();
+    }
+
+    public EntityMetadata getMetadata() {
+        return metadata;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private Segment segmentFor(Object id) {
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static final class Entry {
+        private final Object entity;
+        private final long expiresAt;
+
+        private Entry(Object entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int capacity;
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private Object get(Object id, long now) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(id);
+                if (entry == null) return null;
+                if (ttlNanos > 0 && now - entry.expiresAt >= 0) {
+                    entries.remove(id);
+                    expirations.increment();
+                    return null;
+                }
+                return entry.entity;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(Object id, Object entity, long stamp, long now) {
+            lock.lock();
+            try {
+                if (generation.get() != stamp) return;
+                entries.put(id, new Entry(entity, now + ttlNanos));
+                if (entries.size() > capacity) {
+                    Iterator<Entry> it = entries.values().iterator();
+                    it.next();
+                    it.remove();
+                    evictions.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(Object id) {
+            lock.lock();
+            try {
+                entries.remove(id);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package repository;
+
+import annotations.Column;
+import annotations.Id;
+import annotations.Table;
+import databases.ColumnCodec;
+import databases.Database;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Resolved mapping of a @Table class, built once per class and shared by every repository.
+ */
+public class EntityMetadata {
+
+    private static final Map<Class<?>, EntityMetadata> registry = new ConcurrentHashMap<>();
+
+    public static EntityMetadata of(Class<?> clazz) {
+        EntityMetadata metadata = registry.get(clazz);
+        if (metadata != null) return metadata;
+        return registry.computeIfAbsent(clazz, EntityMetadata::new);
+    }
+
+    private final Class<?> entityClass;
+    private final String tableName;
+    private final List<Field> fields;
+    private final MethodHandle[] getters;
+    private final List<String> columns;
+    private final Map<String, Integer> propertyIndex;
+    private final Field idField;
+    private final String idColumn;
+    private final int idIndex;
+
+    private final String insertSql;
+    private final String selectAllSql;
+    private final String countSql;
+    private final String selectByIdSql;
+    private final String deleteByIdSql;
+    private final String existsByIdSql;
+    private final Map<Database, String> upsertSql = new ConcurrentHashMap<>();
+    private final Map<String, String> idListSql = new ConcurrentHashMap<>();
+    private final Map<Database, FieldBinding[]> bindings = new ConcurrentHashMap<>();
+    private final Map<Database, EntityRowMapper> rowMappers = new ConcurrentHashMap<>();
+    private volatile RowMapper<?> customRowMapper;
+    private volatile Constructor<?> constructor;
+    private final EntitySnapshots snapshots = new EntitySnapshots();
+    private final Map<BitSet, String> updateSql = new ConcurrentHashMap<>();
+
+    private EntityMetadata(Class<?> clazz) {
+        if (!clazz.isAnnotationPresent(Table.class)) throw new IllegalArgumentException("Class must have @Table annotation.");
+
+        this.entityClass = clazz;
+        this.tableName = clazz.getAnnotation(Table.class).name();
+
+        List<Field> fields = new ArrayList<>();
+        List<String> columns = new ArrayList<>();
+        Map<String, Integer> propertyIndex = new HashMap<>();
+        Field idField = null;
+        String idColumn = null;
+        int idIndex = -1;
+
+        for (Field field : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+            field.setAccessible(true);
+
+            String colName = columnName(field);
+            propertyIndex.put(colName.toLowerCase(Locale.ROOT), fields.size());
+            propertyIndex.putIfAbsent(field.getName().toLowerCase(Locale.ROOT), fields.size());
+            if (idField == null && field.isAnnotationPresent(Id.class)) {
+                idField = field;
+                idColumn = colName;
+                idIndex = fields.size();
+            }
+            fields.add(field);
+            columns.add(colName);
+        }
+
+        this.fields = Collections.unmodifiableList(fields);
+        this.getters = new MethodHandle[fields.size()];
+        for (int i = 0; i < getters.length; i++) getters[i] = FieldBinding.boxedGetter(fields.get(i));
+        this.columns = Collections.unmodifiableList(columns);
+        this.propertyIndex = propertyIndex;
+        this.idField = idField;
+        this.idColumn = idColumn;
+        this.idIndex = idIndex;
+
+        StringBuilder insert = new StringBuilder("INSERT INTO ");
+        insert.append(tableName).append(" (");
+        insert.append(String.join(", ", columns));
+        insert.append(") VALUES (");
+        insert.append("?,".repeat(columns.size()));
+        insert.setLength(insert.length() - 1);
+        insert.append(")");
+        this.insertSql = insert.toString();
+
+        this.selectAllSql = "SELECT " + String.join(", ", columns) + " FROM " + tableName;
+        this.countSql = "SELECT COUNT(*) FROM " + tableName;
+        if (idColumn != null) {
+            this.selectByIdSql = selectAllSql + " WHERE " + idColumn + " = ?";
+            this.deleteByIdSql = "DELETE FROM " + tableName + " WHERE " + idColumn + " = ?";
+            this.existsByIdSql = "SELECT EXISTS(SELECT 1 FROM " + tableName + " WHERE " + idColumn + " = ?)";
+        } else {
+            this.selectByIdSql = null;
+            this.deleteByIdSql = null;
+            this.existsByIdSql = null;
+        }
+    }
+
+    public static String columnName(Field field) {
+        Column col = field.getAnnotation(Column.class);
+        return (col != null && !col.name().isEmpty()) ? col.name() : field.getName();
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public boolean hasId() {
+        return idField != null;
+    }
+
+    public Field getIdField() {
+        requireId();
+        return idField;
+    }
+
+    public String getIdColumn() {
+        requireId();
+        return idColumn;
+    }
+
+    /*
+        Position of the @Id field in getFields() and getColumns()
+     */
+    public int getIdIndex() {
+        requireId();
+        return idIndex;
+    }
+
+    /*
+        Resolves a property name (as used in derived method names) against column and field names, ignoring case.
+        Returns -1 if the entity has no such property.
+     */
+    public int indexOfProperty(String property) {
+        Integer index = propertyIndex.get(property.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    public String getSelectAllSql() {
+        return selectAllSql;
+    }
+
+    public String getCountSql() {
+        return countSql;
+    }
+
+    public String getSelectByIdSql() {
+        requireId();
+        return selectByIdSql;
+    }
+
+    public String getDeleteByIdSql() {
+        requireId();
+        return deleteByIdSql;
+    }
+
+    public String getExistsByIdSql() {
+        requireId();
+        return existsByIdSql;
+    }
+
+    /*
+        Dialect upsert of every column, keyed by the id column
+     */
+    public String getUpsertSql(Database database) {
+        requireId();
+        return upsertSql.computeIfAbsent(database, db -> db.getUpsertSql(tableName, columns, idColumn));
+    }
+
+    /*
+        SELECT, DELETE and COUNT matching a list of ids: size parameters in an IN list, or a single array parameter
+        of the dialect when size is 0
+     */
+    public String selectByIdsSql(Database database, int size) {
+        return idListSql(database, "SELECT", selectAllSql, size);
+    }
+
+    public String deleteByIdsSql(Database database, int size) {
+        return idListSql(database, "DELETE", "DELETE FROM " + tableName, size);
+    }
+
+    public String countByIdsSql(Database database, int size) {
+        return idListSql(database, "COUNT", countSql, size);
+    }
+
+    private String idListSql(Database database, String kind, String statement, int size) {
+        requireId();
+        String key = kind + size + (size == 0 ? "@" + database.getClass().getName() : "");
+        return idListSql.computeIfAbsent(key, k -> {
+            if (size == 0) return statement + " WHERE " + database.getArrayMatchSql(idColumn);
+            String list = "?,".repeat(size);
+            return statement + " WHERE " + idColumn + " IN (" + list.substring(0, list.length() - 1) + ")";
+        });
+    }
+
+    public Object[] valuesOf(Object entity) {
+        Object[] values = new Object[getters.length];
+        for (int i = 0; i < values.length; i++) values[i] = FieldBinding.get(getters[i], entity);
+        return values;
+    }
+
+    public Object idValueOf(Object entity) {
+        return FieldBinding.get(getters[getIdIndex()], entity);
+    }
+
+    /*
+        Remembers the current column values of an entity as its database state
+     */
+    public void snapshot(Object entity) {
+        snapshots.put(entity, valuesOf(entity));
+    }
+
+    /*
+        Puts back an earlier snapshot, or forgets the entity for null, e.g. after a queued write failed
+     */
+    public void resetSnapshot(Object entity, Object[] snapshot) {
+        if (snapshot == null) snapshots.remove(entity);
+        else snapshots.put(entity, snapshot);
+    }
+
+    /*
+        Column values of the entity when it was last loaded or saved, or null if the entity was never seen
+     */
+    public Object[] snapshotOf(Object entity) {
+        return snapshots.get(entity);
+    }
+
+    /*
+        Indexes of the columns whose current values differ from the snapshot
+     */
+    public BitSet changedColumns(Object[] snapshot, Object[] current) {
+        BitSet changed = new BitSet(current.length);
+        for (int i = 0; i < current.length; i++) {
+            if (!Objects.deepEquals(snapshot[i], current[i])) changed.set(i);
+        }
+        return changed;
+    }
+
+    /*
+        UPDATE of the given columns, matched by the id: SET parameters in column order, then the id
+     */
+    public String updateSql(BitSet changed) {
+        requireId();
+        String sql = updateSql.get(changed);
+        if (sql != null) return sql;
+
+        StringBuilder update = new StringBuilder("UPDATE ");
+        update.append(tableName).append(" SET ");
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            update.append(columns.get(i)).append(" = ?, ");
+        }
+        update.setLength(update.length() - 2);
+        update.append(" WHERE ").append(idColumn).append(" = ?");
+        sql = update.toString();
+        updateSql.putIfAbsent((BitSet) changed.clone(), sql);
+        return sql;
+    }
+
+    /*
+        Binds the parameters of updateSql(changed), matching the row by the id it had in the snapshot
+     */
+    public void bindUpdate(Database database, Object entity, BitSet changed, Object[] snapshot, PreparedStatement stmt) throws SQLException {
+        FieldBinding[] fieldBindings = getBindings(database);
+        int index = 1;
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            fieldBindings[i].bind(stmt, index++, entity);
+        }
+        fieldBindings[idIndex].getCodec().bind(stmt, index, snapshot[idIndex]);
+    }
+
+    /*
+        Shallow copy of an entity through its no-arg constructor, copying every mapped field
+     */
+    public Object copyOf(Object entity) {
+        try {
+            Constructor<?> ctor = constructor;
+            if (ctor == null) {
+                ctor = entityClass.getDeclaredConstructor();
+                ctor.setAccessible(true);
+                constructor = ctor;
+            }
+            Object copy = ctor.newInstance();
+            for (Field field : fields) field.set(copy, field.get(entity));
+            return copy;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Cannot copy " + entityClass.getName(), e);
+        }
+    }
+
+    /*
+        Fields paired with the codecs of a dialect, in getFields() order
+     */
+    public FieldBinding[] getBindings(Database database) {
+        return bindings.computeIfAbsent(database, db -> {
+            FieldBinding[] result = new FieldBinding[fields.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new FieldBinding(fields.get(i), columns.get(i), db.getCodec(fields.get(i).getType()));
+            }
+            return result;
+        });
+    }
+
+    public ColumnCodec getIdCodec(Database database) {
+        return getBindings(database)[getIdIndex()].getCodec();
+    }
+
+    /*
+        Binds every mapped field of the entity starting at parameter startIndex, returning the next free index
+     */
+    public int bindValues(Database database, Object entity, PreparedStatement stmt, int startIndex) throws SQLException {
+        FieldBinding[] fieldBindings = getBindings(database);
+        for (FieldBinding binding : fieldBindings) binding.bind(stmt, startIndex++, entity);
+        return startIndex;
+    }
+
+    /*
+        Mapper for rows of a SELECT generated from this metadata, whose columns are in getColumns() order
+     */
+    public RowMapper<?> getRowMapper(Database database) {
+        RowMapper<?> custom = customRowMapper;
+        if (custom != null) return custom;
+        return rowMappers.computeIfAbsent(database, db -> RowMapper.forEntity(this, db));
+    }
+
+    /*
+        Replaces the generated mapper for every dialect, e.g. with a hand-written one for a hot entity
+     */
+    public void setRowMapper(RowMapper<?> rowMapper) {
+        this.customRowMapper = rowMapper;
+    }
+
+    /*
+        Mapper for a result with an arbitrary column list, resolving column positions by label once for the
+        whole ResultSet. Columns the result does not contain are left unset.
+     */
+    public RowMapper<?> rowMapperFor(Database database, ResultSetMetaData resultMetaData) throws SQLException {
+        RowMapper<?> mapper = getRowMapper(database);
+        if (!(mapper instanceof EntityRowMapper)) return mapper;
+
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = resultMetaData.getColumnCount(); i >= 1; i--) {
+            labels.put(resultMetaData.getColumnLabel(i).toLowerCase(Locale.ROOT), i);
+        }
+        int[] indexes = new int[columns.size()];
+        boolean identity = labels.size() == columns.size();
+        for (int i = 0; i < indexes.length; i++) {
+            Integer index = labels.get(columns.get(i).toLowerCase(Locale.ROOT));
+            indexes[i] = index == null ? 0 : index;
+            identity &= indexes[i] == i + 1;
+        }
+        return identity ? mapper : ((EntityRowMapper) mapper).withColumnIndexes(indexes);
+    }
+
+    void requireId() {
+        if (idField == null) throw new RuntimeException("No @Id field found.");
+    }
+}
@@ -0,0 +1,13 @@
+package repository;
+
+/*
+    RowMapper for a mapped entity. By default field i is read from column i + 1, which matches the column
+    order of every SELECT generated from EntityMetadata; other queries rebind the indexes once per ResultSet.
+ */
+public interface EntityRowMapper extends RowMapper<Object> {
+
+    /*
+        Same mapper reading field i from columnIndexes[i] (1-based, 0 when the result has no such column)
+     */
+    EntityRowMapper withColumnIndexes(int[] columnIndexes);
+}
@@ -0,0 +1,63 @@
+package repository;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Column values of entities as they were last read from or written to the database, used for dirty checking.
+    Entities are held weakly and compared by identity, so entities with their own equals() are tracked per instance
+    and snapshots disappear together with the entities they describe.
+ */
+public class EntitySnapshots {
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final Map<Key, Object[]> snapshots = new ConcurrentHashMap<>();
+
+    public void put(Object entity, Object[] values) {
+        purge();
+        snapshots.put(new Key(entity, queue), values);
+    }
+
+    public Object[] get(Object entity) {
+        return snapshots.get(new Key(entity, null));
+    }
+
+    public void remove(Object entity) {
+        snapshots.remove(new Key(entity, null));
+    }
+
+    public int size() {
+        purge();
+        return snapshots.size();
+    }
+
+    private void purge() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) snapshots.remove(ref);
+    }
+
+    private static final class Key extends WeakReference<Object> {
+        private final int hash;
+
+        private Key(Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            this.hash = System.identityHashCode(entity);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Key)) return false;
+            Object entity = get();
+            return entity != null && entity == ((Key) other).get();
+        }
+    }
+}
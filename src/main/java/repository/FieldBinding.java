@@ -0,0 +1,136 @@
+package repository;
+
+import databases.ColumnCodec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    A mapped field together with its dialect codec, resolved once per entity and dialect.
+    Primitive fields with a primitive codec are read and bound through exactly typed MethodHandles, without boxing.
+ */
+public final class FieldBinding {
+
+    private enum Kind { INT, LONG, DOUBLE, FLOAT, BOOLEAN, SHORT, BYTE, OBJECT }
+
+    private final Field field;
+    private final String column;
+    private final ColumnCodec codec;
+    private final Kind kind;
+    private final MethodHandle getter;
+    private final MethodHandle boxedGetter;
+    private final MethodHandle setter;
+
+    public FieldBinding(Field field, String column, ColumnCodec codec) {
+        this.field = field;
+        this.column = column;
+        this.codec = codec;
+        this.kind = kindOf(field.getType(), codec);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle get = lookup.unreflectGetter(field);
+            MethodHandle set = lookup.unreflectSetter(field);
+            Class<?> type = kind == Kind.OBJECT ? Object.class : field.getType();
+            this.getter = get.asType(MethodType.methodType(type, Object.class));
+            this.boxedGetter = boxedGetter(field);
+            this.setter = set.asType(MethodType.methodType(void.class, Object.class, type));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public ColumnCodec getCodec() {
+        return codec;
+    }
+
+    public Object get(Object entity) {
+        return get(boxedGetter, entity);
+    }
+
+    /*
+        Getter of the field as (Object) -> Object, boxing primitives, for use with get(MethodHandle, Object)
+     */
+    static MethodHandle boxedGetter(Field field) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Object get(MethodHandle boxedGetter, Object entity) {
+        try {
+            return (Object) boxedGetter.invokeExact(entity);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    public void read(ResultSet rs, int index, Object target) throws SQLException {
+        try {
+            switch (kind) {
+                case INT: setter.invokeExact(target, ((ColumnCodec.OfInt) codec).readInt(rs, index)); break;
+                case LONG: setter.invokeExact(target, ((ColumnCodec.OfLong) codec).readLong(rs, index)); break;
+                case DOUBLE: setter.invokeExact(target, ((ColumnCodec.OfDouble) codec).readDouble(rs, index)); break;
+                case FLOAT: setter.invokeExact(target, ((ColumnCodec.OfFloat) codec).readFloat(rs, index)); break;
+                case BOOLEAN: setter.invokeExact(target, ((ColumnCodec.OfBoolean) codec).readBoolean(rs, index)); break;
+                case SHORT: setter.invokeExact(target, ((ColumnCodec.OfShort) codec).readShort(rs, index)); break;
+                case BYTE: setter.invokeExact(target, ((ColumnCodec.OfByte) codec).readByte(rs, index)); break;
+                default:
+                    Object value = codec.read(rs, index);
+                    if (value == null && field.getType().isPrimitive()) return;
+                    setter.invokeExact(target, value);
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    public void bind(PreparedStatement stmt, int index, Object source) throws SQLException {
+        try {
+            switch (kind) {
+                case INT: ((ColumnCodec.OfInt) codec).bindInt(stmt, index, (int) getter.invokeExact(source)); break;
+                case LONG: ((ColumnCodec.OfLong) codec).bindLong(stmt, index, (long) getter.invokeExact(source)); break;
+                case DOUBLE: ((ColumnCodec.OfDouble) codec).bindDouble(stmt, index, (double) getter.invokeExact(source)); break;
+                case FLOAT: ((ColumnCodec.OfFloat) codec).bindFloat(stmt, index, (float) getter.invokeExact(source)); break;
+                case BOOLEAN: ((ColumnCodec.OfBoolean) codec).bindBoolean(stmt, index, (boolean) getter.invokeExact(source)); break;
+                case SHORT: ((ColumnCodec.OfShort) codec).bindShort(stmt, index, (short) getter.invokeExact(source)); break;
+                case BYTE: ((ColumnCodec.OfByte) codec).bindByte(stmt, index, (byte) getter.invokeExact(source)); break;
+                default: codec.bind(stmt, index, (Object) getter.invokeExact(source));
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static Kind kindOf(Class<?> type, ColumnCodec codec) {
+        if (type == int.class && codec instanceof ColumnCodec.OfInt) return Kind.INT;
+        if (type == long.class && codec instanceof ColumnCodec.OfLong) return Kind.LONG;
+        if (type == double.class && codec instanceof ColumnCodec.OfDouble) return Kind.DOUBLE;
+        if (type == float.class && codec instanceof ColumnCodec.OfFloat) return Kind.FLOAT;
+        if (type == boolean.class && codec instanceof ColumnCodec.OfBoolean) return Kind.BOOLEAN;
+        if (type == short.class && codec instanceof ColumnCodec.OfShort) return Kind.SHORT;
+        if (type == byte.class && codec instanceof ColumnCodec.OfByte) return Kind.BYTE;
+        return Kind.OBJECT;
+    }
+}
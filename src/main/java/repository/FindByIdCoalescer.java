@@ -0,0 +1,138 @@
+package repository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Merges findById calls that arrive from different threads within a short window into one id-list query.
+    The first caller of a batch becomes its leader: it waits until the window has passed or the batch is full,
+    runs the query on its own thread and hands the rows to the other callers. No caller waits longer than the
+    window plus the duration of that query. Callers asking for the same id each get their own instance.
+    Each caller names the source it would read from; the batch reads from the primary if any of its callers
+    would, so that a caller inside its read-your-writes window is not served a replica row.
+ */
+public class FindByIdCoalescer {
+
+    public interface BatchLoader {
+        Map<Object, Object> load(List<Object> ids, SQLConnection source);
+    }
+
+    private final EntityMetadata metadata;
+    private final SQLConnection primary;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition full = lock.newCondition();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private Batch current;
+
+    public FindByIdCoalescer(EntityMetadata metadata, SQLConnection primary, long windowMicros, int maxBatchSize) {
+        if (windowMicros < 0) throw new IllegalArgumentException("Coalescing window must be >= 0");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Coalescing batch size must be >= 1");
+        this.metadata = metadata;
+        this.primary = primary;
+        this.windowNanos = windowMicros * 1000L;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public Object load(Object id, SQLConnection source, BatchLoader loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        Batch batch;
+        boolean leader;
+        lock.lock();
+        try {
+            batch = current;
+            leader = batch == null;
+            if (leader) {
+                batch = new Batch(System.nanoTime() + windowNanos, source, loader);
+                current = batch;
+            } else if (source == primary) {
+                batch.source = primary;
+            }
+            batch.waiters.computeIfAbsent(id, k -> new ArrayList<>()).add(future);
+            if (batch.waiters.size() >= maxBatchSize) {
+                current = null;
+                full.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        lookups.increment();
+
+        if (leader) run(batch);
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    private void run(Batch batch) {
+        lock.lock();
+        try {
+            long remaining;
+            while (current == batch && (remaining = batch.deadline - System.nanoTime()) > 0) {
+                full.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (current == batch) current = null;
+            lock.unlock();
+        }
+        batches.increment();
+
+        Map<Object, Object> rows;
+        try {
+            rows = batch.loader.load(new ArrayList<>(batch.waiters.keySet()), batch.source);
+        } catch (Throwable t) {
+            for (List<CompletableFuture<Object>> waiters : batch.waiters.values()) {
+                for (CompletableFuture<Object> waiter : waiters) waiter.completeExceptionally(t);
+            }
+            return;
+        }
+        for (Map.Entry<Object, List<CompletableFuture<Object>>> entry : batch.waiters.entrySet()) {
+            Object entity = rows.get(entry.getKey());
+            List<CompletableFuture<Object>> waiters = entry.getValue();
+            for (int i = 0; i < waiters.size(); i++) {
+                waiters.get(i).complete(i == 0 || entity == null ? entity : copy(entity));
+            }
+        }
+    }
+
+    private Object copy(Object entity) {
+        Object copy = metadata.copyOf(entity);
+        metadata.snapshot(copy);
+        return copy;
+    }
+
+    private static final class Batch {
+        private final long deadline;
+        private final BatchLoader loader;
+        private final Map<Object, List<CompletableFuture<Object>>> waiters = new LinkedHashMap<>();
+        private SQLConnection source;
+
+        private Batch(long deadline, SQLConnection source, BatchLoader loader) {
+            this.deadline = deadline;
+            this.source = source;
+            this.loader = loader;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package repository;
+
+import databases.Database;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/*
+    Mapper that constructs entities through a LambdaMetafactory-generated Supplier and populates fields
+    through the typed MethodHandles of their FieldBindings, avoiding reflective access checks and boxing on every row.
+ */
+public class MethodHandleRowMapper implements EntityRowMapper {
+
+    private final Supplier<Object> constructor;
+    private final FieldBinding[] bindings;
+    private final int[] columnIndexes;
+
+    @SuppressWarnings("unchecked")
+    public MethodHandleRowMapper(EntityMetadata metadata, Database database) throws ReflectiveOperationException {
+        Class<?> entityClass = metadata.getEntityClass();
+        MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(entityClass, MethodHandles.lookup());
+
+        MethodHandle ctor = lookup.findConstructor(entityClass, MethodType.methodType(void.class));
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                    MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+                    ctor, MethodType.methodType(entityClass));
+            this.constructor = (Supplier<Object>) site.getTarget().invokeExact();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException(t);
+        }
+
+        this.bindings = metadata.getBindings(database);
+        this.columnIndexes = new int[bindings.length];
+        for (int i = 0; i < columnIndexes.length; i++) columnIndexes[i] = i + 1;
+    }
+
+    private MethodHandleRowMapper(MethodHandleRowMapper source, int[] columnIndexes) {
+        this.constructor = source.constructor;
+        this.bindings = source.bindings;
+        this.columnIndexes = columnIndexes;
+    }
+
+    @Override
+    public EntityRowMapper withColumnIndexes(int[] columnIndexes) {
+        return new MethodHandleRowMapper(this, columnIndexes.clone());
+    }
+
+    @Override
+    public Object mapRow(ResultSet rs) throws SQLException {
+        Object instance = constructor.get();
+        for (int i = 0; i < bindings.length; i++) {
+            if (columnIndexes[i] == 0) continue;
+            bindings[i].read(rs, columnIndexes[i], instance);
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,25 @@
+package repository;
+
+import java.util.List;
+
+/*
+    A Slice that also carries the total number of matching rows
+ */
+public class Page<T> extends Slice<T> {
+
+    private final long totalElements;
+
+    public Page(List<T> content, Pageable pageable, Pageable nextPageable, long totalElements) {
+        super(content, pageable, nextPageable);
+        this.totalElements = totalElements;
+    }
+
+    public long getTotalElements() {
+        return totalElements;
+    }
+
+    public int getTotalPages() {
+        int size = getPageable().getSize();
+        return (int) ((totalElements + size - 1) / size);
+    }
+}
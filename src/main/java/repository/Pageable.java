@@ -0,0 +1,90 @@
+package repository;
+
+/*
+    Page request for repository queries. Offset pages skip page * size rows; seek (keyset) pages continue
+    after the last seen @Id value, so deep pages cost the same as the first one.
+ */
+public class Pageable {
+
+    private final int page;
+    private final int size;
+    private final Sort sort;
+    private final boolean keyset;
+    private final Object afterId;
+    private final Sort.Direction keysetDirection;
+
+    private Pageable(int page, int size, Sort sort, boolean keyset, Object afterId, Sort.Direction keysetDirection) {
+        if (page < 0) throw new IllegalArgumentException("Page index must be >= 0");
+        if (size < 1) throw new IllegalArgumentException("Page size must be >= 1");
+        this.page = page;
+        this.size = size;
+        this.sort = sort == null ? Sort.unsorted() : sort;
+        this.keyset = keyset;
+        this.afterId = afterId;
+        this.keysetDirection = keysetDirection;
+    }
+
+    public static Pageable of(int page, int size) {
+        return new Pageable(page, size, Sort.unsorted(), false, null, Sort.Direction.ASC);
+    }
+
+    public static Pageable of(int page, int size, Sort sort) {
+        return new Pageable(page, size, sort, false, null, Sort.Direction.ASC);
+    }
+
+    /*
+        Keyset page of rows whose @Id is greater than afterId (null for the first page)
+     */
+    public static Pageable seek(Object afterId, int size) {
+        return seek(afterId, size, Sort.Direction.ASC);
+    }
+
+    /*
+        Keyset page in the given @Id direction; with DESC the page holds rows whose @Id is less than afterId
+     */
+    public static Pageable seek(Object afterId, int size, Sort.Direction direction) {
+        return new Pageable(0, size, Sort.unsorted(), true, afterId, direction);
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getOffset() {
+        return (long) page * size;
+    }
+
+    /*
+        Pageable for the page after this one; keyset pages need the @Id of the last row that was read
+     */
+    public Pageable next(Object lastId) {
+        return keyset ? new Pageable(0, size, sort, true, lastId, keysetDirection)
+                : new Pageable(page + 1, size, sort, false, null, keysetDirection);
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    public Object getAfterId() {
+        return afterId;
+    }
+
+    public Sort.Direction getKeysetDirection() {
+        return keysetDirection;
+    }
+
+    @Override
+    public String toString() {
+        return keyset ? "Pageable[seek after " + afterId + ", size " + size + ", " + getKeysetDirection() + "]"
+                : "Pageable[page " + page + ", size " + size + ", " + sort + "]";
+    }
+}
@@ -0,0 +1,156 @@
+package repository;
+
+import databases.Database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Execution of a query that takes a trailing Pageable or Sort argument. ORDER BY and LIMIT/OFFSET
+    (or FETCH FIRST) clauses come from the dialect; the SQL for each sort is built once and reused.
+ */
+public class PagedQuery {
+
+    public enum Shape { PAGE, SLICE, LIST }
+
+    private final RepositoryHandler handler;
+    private final EntityMetadata metadata;
+    private final String where;
+    private final QueryPlan.ParameterBinder whereBinder;
+    private final int whereParameters;
+    private final int pageIndex;
+    private final Shape shape;
+    private final Projection projection;
+    private final Sort defaultSort;
+    private final String selectSql;
+    private final Map<String, String> sqlCache = new ConcurrentHashMap<>();
+
+    /*
+        where is the condition without the WHERE keyword (null for none), bound by whereBinder from the
+        first whereParameters arguments. pageIndex is the argument holding the Pageable or Sort.
+        Rows are mapped to entities, or to the projection if it is not null. defaultSort applies when the
+        argument carries no sort of its own.
+     */
+    public PagedQuery(RepositoryHandler handler, EntityMetadata metadata, String where, QueryPlan.ParameterBinder whereBinder,
+                      int whereParameters, int pageIndex, Shape shape, Projection projection, Sort defaultSort) {
+        this.handler = handler;
+        this.metadata = metadata;
+        this.where = where;
+        this.whereBinder = whereBinder;
+        this.whereParameters = whereParameters;
+        this.pageIndex = pageIndex;
+        this.shape = shape;
+        this.projection = projection;
+        this.defaultSort = defaultSort;
+        this.selectSql = projection == null ? metadata.getSelectAllSql() : projection.getSelectSql();
+    }
+
+    public static Shape shapeOf(Class<?> returnType) {
+        if (Page.class.isAssignableFrom(returnType)) return Shape.PAGE;
+        if (Slice.class.isAssignableFrom(returnType)) return Shape.SLICE;
+        if (List.class.isAssignableFrom(returnType)) return Shape.LIST;
+        throw new IllegalArgumentException("Paged queries must return Page, Slice or List, not " + returnType.getSimpleName());
+    }
+
+    /*
+        The rows and the count of a page are read from the same source, so the total matches the rows
+     */
+    public Object execute(Object[] args) {
+        SQLConnection source = handler.readSource();
+        Object arg = args[pageIndex];
+        if (arg instanceof Sort) {
+            Sort sort = ((Sort) arg).isSorted() ? (Sort) arg : defaultSort;
+            String sql = sqlCache.computeIfAbsent("sort:" + sort, k -> selectSql + whereClause(null) + orderBy(sort));
+            return handler.executeQuery(source, sql, whereBinder, this::mapRows, args);
+        }
+        if (!(arg instanceof Pageable)) throw new IllegalArgumentException("Pageable argument must not be null");
+
+        Pageable pageable = (Pageable) arg;
+        Database database = handler.getDatabase();
+        boolean seek = pageable.isKeyset() && pageable.getAfterId() != null;
+        String sql = sqlCache.computeIfAbsent(cacheKey(pageable, seek), k -> pageSql(database, pageable, seek));
+
+        int limit = pageable.getSize() + 1;
+        List<Object> rows = castRows(handler.executeQuery(source, sql, (stmt, a) -> {
+            whereBinder.bind(stmt, a);
+            int index = whereParameters + 1;
+            if (seek) metadata.getIdCodec(database).bind(stmt, index++, pageable.getAfterId());
+            if (pageable.isKeyset()) database.bindLimit(stmt, index, limit);
+            else database.bindLimitOffset(stmt, index, limit, pageable.getOffset());
+        }, this::mapRows, args));
+
+        Pageable next = null;
+        if (rows.size() > pageable.getSize()) {
+            rows = new ArrayList<>(rows.subList(0, pageable.getSize()));
+            next = pageable.next(pageable.isKeyset() ? idValueOf(rows.get(rows.size() - 1)) : null);
+        }
+
+        switch (shape) {
+            case LIST:
+                return rows;
+            case SLICE:
+                return new Slice<>(rows, pageable, next);
+            default:
+                String countSql = sqlCache.computeIfAbsent("count", k -> metadata.getCountSql() + whereClause(null));
+                long total = ((Number) handler.executeQuery(source, countSql, whereBinder,
+                        rs -> rs.next() ? rs.getLong(1) : 0L, args)).longValue();
+                return new Page<>(rows, pageable, next, total);
+        }
+    }
+
+    private String pageSql(Database database, Pageable pageable, boolean seek) {
+        if (pageable.isKeyset()) {
+            String idColumn = metadata.getIdColumn();
+            boolean asc = pageable.getKeysetDirection() == Sort.Direction.ASC;
+            String condition = seek ? idColumn + (asc ? " > ?" : " < ?") : null;
+            return database.getLimitSql(selectSql + whereClause(condition)
+                    + " ORDER BY " + idColumn + (asc ? " ASC" : " DESC"));
+        }
+        Sort sort = pageable.getSort().isSorted() ? pageable.getSort() : defaultSort;
+        if (!sort.isSorted() && metadata.hasId()) sort = Sort.by(metadata.getIdColumn());
+        return database.getLimitOffsetSql(selectSql + whereClause(null) + orderBy(sort));
+    }
+
+    private String whereClause(String extraCondition) {
+        if (where == null && extraCondition == null) return "";
+        if (where == null) return " WHERE " + extraCondition;
+        if (extraCondition == null) return " WHERE " + where;
+        return " WHERE (" + where + ") AND " + extraCondition;
+    }
+
+    private String orderBy(Sort sort) {
+        if (!sort.isSorted()) return "";
+        StringBuilder sql = new StringBuilder(" ORDER BY ");
+        for (Sort.Order order : sort.getOrders()) {
+            int index = metadata.indexOfProperty(order.getProperty());
+            if (index < 0) throw new IllegalArgumentException("No matching field found for sort property: " + order.getProperty());
+            sql.append(metadata.getColumns().get(index)).append(' ').append(order.getDirection()).append(", ");
+        }
+        sql.setLength(sql.length() - 2);
+        return sql.toString();
+    }
+
+    private static String cacheKey(Pageable pageable, boolean seek) {
+        return pageable.isKeyset() ? "seek:" + pageable.getKeysetDirection() + ":" + seek : "page:" + pageable.getSort();
+    }
+
+    private Object mapRows(ResultSet rs) throws SQLException {
+        if (projection == null) return handler.mapList(metadata, rs);
+        List<Object> rows = new ArrayList<>();
+        while (rs.next()) rows.add(projection.mapRow(rs));
+        return rows;
+    }
+
+    private Object idValueOf(Object row) {
+        return projection == null ? metadata.idValueOf(row) : projection.idValueOf(row);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> castRows(Object rows) {
+        return (List<Object>) rows;
+    }
+}
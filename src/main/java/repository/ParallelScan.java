@@ -0,0 +1,212 @@
+package repository;
+
+import databases.ColumnCodec;
+import databases.Database;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+    Full-table read split into id ranges that are streamed concurrently, one pooled connection per range.
+    The whole scan runs on one source, the primary or a single replica, and is sized by that source's pool,
+    so the bounds and every range see the same copy of the data.
+    Integral ids are cut into equal-width ranges between MIN and MAX; other ids at evenly spaced keys found
+    through the id index. The first and last ranges are open-ended so rows beyond the sampled bounds are not lost.
+    The result is a parallel stream whose spliterator splits along the ranges, so its terminal operation runs
+    them on the fork-join pool it is called from (the common pool unless submitted to another ForkJoinPool).
+    A range opens its query only when a worker reaches it and closes it once read to the end; the stream must be
+    closed to give back the connections of ranges left unfinished.
+ */
+public class ParallelScan {
+
+    private final RepositoryHandler handler;
+    private final EntityMetadata metadata;
+
+    public ParallelScan(RepositoryHandler handler, EntityMetadata metadata) {
+        this.handler = handler;
+        this.metadata = metadata;
+    }
+
+    public Stream<Object> stream() {
+        SQLConnection source = handler.readSource();
+        int partitions = handler.scanPartitions(source);
+        String selectSql = metadata.getSelectAllSql();
+        if (partitions <= 1 || !metadata.hasId()) {
+            return handler.executeStream(source, selectSql, (stmt, a) -> { }, handler.streamingMapper(metadata), null).parallel();
+        }
+        List<Object> bounds = isIntegral(metadata.getIdField().getType())
+                ? integralBounds(source, partitions) : keyBounds(source, partitions);
+
+        Database database = handler.getDatabase();
+        ColumnCodec codec = metadata.getIdCodec(database);
+        String idColumn = metadata.getIdColumn();
+        List<Range> ranges = new ArrayList<>(bounds.size() + 1);
+        for (int i = 0; i <= bounds.size(); i++) {
+            Object lower = i == 0 ? null : bounds.get(i - 1);
+            Object upper = i == bounds.size() ? null : bounds.get(i);
+            String where = lower == null && upper == null ? ""
+                    : lower == null ? " WHERE " + idColumn + " < ?"
+                    : upper == null ? " WHERE " + idColumn + " >= ?"
+                    : " WHERE " + idColumn + " >= ? AND " + idColumn + " < ?";
+            ranges.add(new Range(selectSql + where, (stmt, a) -> {
+                int index = 1;
+                if (lower != null) codec.bind(stmt, index++, lower);
+                if (upper != null) codec.bind(stmt, index, upper);
+            }));
+        }
+
+        Queue<Stream<Object>> opened = new ConcurrentLinkedQueue<>();
+        RowMapper<?> mapper = handler.streamingMapper(metadata);
+        return StreamSupport.stream(new RangeSpliterator(source, ranges, 0, ranges.size(), mapper, opened), true)
+                .onClose(() -> {
+                    RuntimeException failure = null;
+                    Stream<Object> stream;
+                    while ((stream = opened.poll()) != null) {
+                        try {
+                            stream.close();
+                        } catch (RuntimeException e) {
+                            if (failure == null) failure = e;
+                            else failure.addSuppressed(e);
+                        }
+                    }
+                    if (failure != null) throw failure;
+                });
+    }
+
+    private static boolean isIntegral(Class<?> type) {
+        return type == long.class || type == Long.class || type == int.class || type == Integer.class
+                || type == short.class || type == Short.class;
+    }
+
+    /*
+        Interior bounds of equal-width ranges over [MIN(id), MAX(id)], fewer for narrow id spans
+     */
+    private List<Object> integralBounds(SQLConnection source, int partitions) {
+        String sql = "SELECT MIN(" + metadata.getIdColumn() + "), MAX(" + metadata.getIdColumn() + ") FROM " + metadata.getTableName();
+        long[] span = (long[]) handler.executeQuery(source, sql, (stmt, a) -> { }, rs -> {
+            if (!rs.next()) return null;
+            long min = rs.getLong(1);
+            return rs.wasNull() ? null : new long[]{min, rs.getLong(2)};
+        }, null);
+        List<Object> bounds = new ArrayList<>();
+        if (span == null) return bounds;
+
+        Class<?> type = metadata.getIdField().getType();
+        double width = ((double) span[1] - span[0] + 1) / partitions;
+        long previous = span[0];
+        for (int i = 1; i < partitions; i++) {
+            long bound = span[0] + (long) Math.floor(width * i);
+            if (bound <= previous) continue;
+            previous = bound;
+            if (type == long.class || type == Long.class) bounds.add(bound);
+            else if (type == int.class || type == Integer.class) bounds.add((int) bound);
+            else bounds.add((short) bound);
+        }
+        return bounds;
+    }
+
+    /*
+        Ids at every (count / partitions)-th position in id order, picked in a single pass that numbers the ids
+        with ROW_NUMBER, rather than one OFFSET query per bound that would each skip the ids before it
+     */
+    private List<Object> keyBounds(SQLConnection source, int partitions) {
+        long count = ((Number) handler.executeQuery(source, metadata.getCountSql(), (stmt, a) -> { },
+                rs -> rs.next() ? rs.getLong(1) : 0L, null)).longValue();
+        List<Object> bounds = new ArrayList<>();
+        if (count < partitions) return bounds;
+
+        ColumnCodec codec = metadata.getIdCodec(handler.getDatabase());
+        String idColumn = metadata.getIdColumn();
+        String sql = "SELECT " + idColumn + " FROM (SELECT " + idColumn + ", ROW_NUMBER() OVER (ORDER BY " + idColumn
+                + ") scan_row FROM " + metadata.getTableName() + ") numbered WHERE MOD(scan_row, ?) = 0 AND scan_row <= ?"
+                + " ORDER BY " + idColumn;
+        long step = count / partitions;
+        handler.executeQuery(source, sql, (stmt, a) -> {
+            stmt.setLong(1, step);
+            stmt.setLong(2, step * (partitions - 1));
+        }, (ResultSet rs) -> {
+            while (rs.next()) bounds.add(codec.read(rs, 1));
+            return null;
+        }, null);
+        return bounds;
+    }
+
+    private static final class Range {
+        private final String sql;
+        private final QueryPlan.ParameterBinder binder;
+
+        private Range(String sql, QueryPlan.ParameterBinder binder) {
+            this.sql = sql;
+            this.binder = binder;
+        }
+    }
+
+    /*
+        Splits by halving its ranges; a spliterator left with one range streams it lazily
+     */
+    private final class RangeSpliterator implements Spliterator<Object> {
+        private final SQLConnection source;
+        private final List<Range> ranges;
+        private final RowMapper<?> mapper;
+        private final Queue<Stream<Object>> opened;
+        private int from;
+        private final int to;
+        private Stream<Object> current;
+        private Spliterator<Object> rows;
+
+        private RangeSpliterator(SQLConnection source, List<Range> ranges, int from, int to, RowMapper<?> mapper,
+                                 Queue<Stream<Object>> opened) {
+            this.source = source;
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+            this.mapper = mapper;
+            this.opened = opened;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Object> action) {
+            while (true) {
+                if (rows == null) {
+                    if (from >= to) return false;
+                    Range range = ranges.get(from++);
+                    current = handler.executeStream(source, range.sql, range.binder, mapper, null);
+                    opened.add(current);
+                    rows = current.spliterator();
+                }
+                if (rows.tryAdvance(action)) return true;
+                /* give the range's connection back now rather than when the whole scan is closed */
+                opened.remove(current);
+                current.close();
+                current = null;
+                rows = null;
+            }
+        }
+
+        @Override
+        public Spliterator<Object> trySplit() {
+            if (rows != null || to - from < 2) return null;
+            int middle = (from + to) >>> 1;
+            RangeSpliterator prefix = new RangeSpliterator(source, ranges, from, middle, mapper, opened);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL;
+        }
+    }
+}
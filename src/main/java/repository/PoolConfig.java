@@ -0,0 +1,76 @@
+package repository;
+
+/*
+    Settings for the built-in connection pool used by a pooled SQLConnection
+ */
+public class PoolConfig {
+
+    private int minSize = 2;
+    private int maxSize = 10;
+    private long acquireTimeoutMillis = 30_000;
+    private long idleTimeoutMillis = 600_000;
+    private long validationIntervalMillis = 5_000;
+    private int validationTimeoutSeconds = 2;
+
+    public PoolConfig minSize(int minSize) {
+        if (minSize < 0) throw new IllegalArgumentException("minSize must be >= 0");
+        this.minSize = minSize;
+        return this;
+    }
+
+    public PoolConfig maxSize(int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be >= 1");
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public PoolConfig acquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        return this;
+    }
+
+    /*
+        Idle connections above minSize are closed after this long without use
+     */
+    public PoolConfig idleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /*
+        Connections that have been idle for longer than this are checked with Connection.isValid before being handed out
+     */
+    public PoolConfig validationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+        return this;
+    }
+
+    public PoolConfig validationTimeoutSeconds(int validationTimeoutSeconds) {
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        return this;
+    }
+
+    public int getMinSize() {
+        return Math.min(minSize, maxSize);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public int getValidationTimeoutSeconds() {
+        return validationTimeoutSeconds;
+    }
+}
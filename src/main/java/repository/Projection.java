@@ -0,0 +1,268 @@
+package repository;
+
+import databases.ColumnCodec;
+import databases.Database;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+    Read-only view of a subset of an entity's columns, declared as a record or an interface of getters.
+    Record components and getter names (getX/isX/x) are matched against the entity's properties, the SELECT
+    lists only those columns, and rows are mapped straight into the record constructor or an interface proxy.
+    Projections of custom query results need not match the entity and resolve their columns by label.
+ */
+public class Projection {
+
+    private final Class<?> type;
+    private final List<String> properties = new ArrayList<>();
+    private final List<String> columns = new ArrayList<>();
+    private final ColumnCodec[] codecs;
+    private final Object[] defaults;
+    private final String selectSql;
+    private final int idPosition;
+    private final MethodHandle constructor;
+    private final MethodHandle idAccessor;
+    private final Map<Method, Integer> getters;
+
+    public Projection(EntityMetadata metadata, Class<?> type, Database database) {
+        this(metadata, type, database, false);
+    }
+
+    /*
+        Projection of a custom query result. Properties that are not entity properties, such as aggregates,
+        read the column named like the property with the codec of their declared type.
+     */
+    public static Projection ofResult(EntityMetadata metadata, Class<?> type, Database database) {
+        return new Projection(metadata, type, database, true);
+    }
+
+    private Projection(EntityMetadata metadata, Class<?> type, Database database, boolean lenient) {
+        this.type = type;
+
+        List<Class<?>> types = new ArrayList<>();
+        if (type.isRecord()) {
+            this.getters = null;
+            for (RecordComponent component : type.getRecordComponents()) {
+                properties.add(component.getName());
+                types.add(component.getType());
+            }
+        } else if (type.isInterface()) {
+            this.getters = new HashMap<>();
+            Map<String, Integer> positions = new HashMap<>();
+            for (Method method : type.getMethods()) {
+                if (method.isDefault() || Modifier.isStatic(method.getModifiers())) continue;
+                if (method.getParameterCount() != 0 || method.getReturnType() == void.class) {
+                    throw new IllegalArgumentException("Projection " + type.getSimpleName() + " may only declare getters, not " + method.getName());
+                }
+                String property = propertyOf(method);
+                Integer position = positions.get(property);
+                if (position == null) {
+                    position = properties.size();
+                    positions.put(property, position);
+                    properties.add(property);
+                    types.add(method.getReturnType());
+                }
+                getters.put(method, position);
+            }
+        } else {
+            throw new IllegalArgumentException("Projections must be records or interfaces: " + type.getName());
+        }
+        if (properties.isEmpty()) throw new IllegalArgumentException("Projection " + type.getSimpleName() + " has no properties");
+
+        FieldBinding[] bindings = metadata.getBindings(database);
+        this.codecs = new ColumnCodec[properties.size()];
+        this.defaults = new Object[properties.size()];
+        int idPosition = -1;
+        for (int i = 0; i < properties.size(); i++) {
+            Class<?> propertyType = types.get(i);
+            if (propertyType.isPrimitive()) defaults[i] = Array.get(Array.newInstance(propertyType, 1), 0);
+            int index = metadata.indexOfProperty(properties.get(i));
+            if (index < 0 && lenient) {
+                columns.add(properties.get(i));
+                codecs[i] = database.getCodec(propertyType);
+                continue;
+            }
+            if (index < 0) {
+                throw new IllegalArgumentException("No matching field found for projection property: "
+                        + properties.get(i) + " in " + type.getSimpleName());
+            }
+            columns.add(metadata.getColumns().get(index));
+            codecs[i] = bindings[index].getField().getType() == propertyType
+                    ? bindings[index].getCodec()
+                    : database.getCodec(propertyType);
+            if (metadata.hasId() && index == metadata.getIdIndex()) idPosition = i;
+        }
+        this.idPosition = idPosition;
+        this.selectSql = "SELECT " + String.join(", ", columns) + " FROM " + metadata.getTableName();
+
+        if (type.isRecord()) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+                this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class, types))
+                        .asSpreader(Object[].class, types.size());
+                this.idAccessor = idPosition < 0 ? null
+                        : lookup.unreflect(type.getRecordComponents()[idPosition].getAccessor());
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            this.constructor = null;
+            this.idAccessor = null;
+        }
+    }
+
+    /*
+        Whether a repository method returning elementType should be answered with a projection of the entity
+     */
+    public static boolean isProjection(Class<?> elementType, Class<?> entityClass) {
+        return elementType != entityClass && (elementType.isRecord() || elementType.isInterface());
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /*
+        SELECT of the projected columns, to be followed by WHERE/ORDER BY clauses on the entity table
+     */
+    public String getSelectSql() {
+        return selectSql;
+    }
+
+    public RowMapper<Object> getRowMapper() {
+        return this::mapRow;
+    }
+
+    public Object mapRow(ResultSet rs) throws SQLException {
+        return mapRow(rs, null);
+    }
+
+    /*
+        Mapper for a result with an arbitrary column list, matching column labels to the projected columns or,
+        ignoring case and underscores, to the property names
+     */
+    public RowMapper<Object> rowMapperFor(ResultSetMetaData resultMetaData) throws SQLException {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = resultMetaData.getColumnCount(); i >= 1; i--) {
+            String label = resultMetaData.getColumnLabel(i).toLowerCase(Locale.ROOT);
+            labels.put(label, i);
+            labels.putIfAbsent(label.replace("_", ""), i);
+        }
+        int[] positions = new int[properties.size()];
+        boolean identity = true;
+        for (int i = 0; i < positions.length; i++) {
+            Integer position = labels.get(columns.get(i).toLowerCase(Locale.ROOT));
+            if (position == null) position = labels.get(properties.get(i).toLowerCase(Locale.ROOT).replace("_", ""));
+            if (position == null) {
+                throw new IllegalArgumentException("Result has no column for projection property: "
+                        + properties.get(i) + " in " + type.getSimpleName());
+            }
+            positions[i] = position;
+            identity &= position == i + 1;
+        }
+        if (identity) return this::mapRow;
+        return rs -> mapRow(rs, positions);
+    }
+
+    private Object mapRow(ResultSet rs, int[] positions) throws SQLException {
+        Object[] values = new Object[codecs.length];
+        for (int i = 0; i < values.length; i++) {
+            Object value = codecs[i].read(rs, positions == null ? i + 1 : positions[i]);
+            values[i] = value == null ? defaults[i] : value;
+        }
+        if (constructor == null) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new Values(values));
+        }
+        try {
+            return constructor.invoke(values);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /*
+        Id of a projected row, for keyset pagination
+     */
+    public Object idValueOf(Object row) {
+        if (idPosition < 0) {
+            throw new IllegalArgumentException("Projection " + type.getSimpleName() + " must include the @Id property for keyset pagination");
+        }
+        if (idAccessor == null) return ((Values) Proxy.getInvocationHandler(row)).values[idPosition];
+        try {
+            return idAccessor.invoke(row);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static String propertyOf(Method method) {
+        String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3) return decapitalize(name.substring(3));
+        if (name.startsWith("is") && name.length() > 2 && (method.getReturnType() == boolean.class
+                || method.getReturnType() == Boolean.class)) return decapitalize(name.substring(2));
+        return name;
+    }
+
+    private static String decapitalize(String name) {
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private class Values implements InvocationHandler {
+        private final Object[] values;
+
+        private Values(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Integer position = getters.get(method);
+            if (position != null) return values[position];
+            if (method.isDefault()) return InvocationHandler.invokeDefault(proxy, method, args);
+
+            switch (method.getName()) {
+                case "equals":
+                    Object other = args[0];
+                    return other != null && Proxy.isProxyClass(other.getClass()) && type.isInstance(other)
+                            && Proxy.getInvocationHandler(other) instanceof Values
+                            && Arrays.equals(values, ((Values) Proxy.getInvocationHandler(other)).values);
+                case "hashCode":
+                    return Arrays.hashCode(values);
+                case "toString":
+                    StringBuilder text = new StringBuilder(type.getSimpleName()).append('[');
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0) text.append(", ");
+                        text.append(properties.get(i)).append('=').append(values[i]);
+                    }
+                    return text.append(']').toString();
+                default:
+                    throw new UnsupportedOperationException(method.toString());
+            }
+        }
+    }
+}
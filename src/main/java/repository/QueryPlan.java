@@ -0,0 +1,56 @@
+package repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    Executable form of a single repository method, compiled once when the repository is created
+ */
+public final class QueryPlan {
+
+    @FunctionalInterface
+    public interface Execution {
+        Object execute(Object[] args) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface ParameterBinder {
+        void bind(PreparedStatement stmt, Object[] args) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface ResultHandler {
+        Object handle(ResultSet rs) throws Exception;
+    }
+
+    private final String methodName;
+    private final String sql;
+    private final Execution execution;
+
+    public QueryPlan(String methodName, String sql, Execution execution) {
+        this.methodName = methodName;
+        this.sql = sql;
+        this.execution = execution;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /*
+        SQL text of the plan, or null when the operation builds its statements itself (e.g. saveAll)
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    public Object execute(Object[] args) throws Exception {
+        return execution.execute(args);
+    }
+
+    @Override
+    public String toString() {
+        return methodName + (sql == null ? "" : " -> " + sql);
+    }
+}
@@ -0,0 +1,627 @@
+package repository;
+
+import annotations.CustomQuery;
+import annotations.Param;
+import databases.ColumnCodec;
+import databases.Database;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/*
+    Analyses every method of a repository interface once and turns it into a QueryPlan.
+    Methods that cannot be mapped fail here, when the repository is created, instead of on first call.
+ */
+public class QueryPlanner {
+
+    private static final QueryPlan.ParameterBinder NO_PARAMETERS = (stmt, args) -> {};
+
+    /*
+        Built-in methods whose plans return a future themselves
+     */
+    private static final Set<String> RETURNS_FUTURE = Set.of("saveAsync", "deleteAsync");
+
+    private final RepositoryHandler handler;
+    private final Class<?> repositoryInterface;
+    private final EntityMetadata metadata;
+
+    public QueryPlanner(RepositoryHandler handler, Class<?> repositoryInterface, Class<?> entityClass) {
+        this.handler = handler;
+        this.repositoryInterface = repositoryInterface;
+        this.metadata = EntityMetadata.of(entityClass);
+    }
+
+    public Map<Method, QueryPlan> compile() {
+        Map<Method, QueryPlan> plans = new HashMap<>();
+        for (Method method : repositoryInterface.getMethods()) {
+            if (method.isDefault() || Modifier.isStatic(method.getModifiers())) continue;
+            QueryPlan plan = plan(method);
+            plans.put(method, isAsync(method) && !RETURNS_FUTURE.contains(method.getName()) ? asyncPlan(plan) : plan);
+        }
+        return plans;
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueryPlan plan(Method method) {
+        String name = method.getName();
+
+        if (method.isAnnotationPresent(CustomQuery.class)) {
+            String text = method.getAnnotation(CustomQuery.class).query();
+            CustomStatement statement;
+            try {
+                statement = CustomStatement.parse(text);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage() + " in " + describe(method));
+            }
+            return customPlan(method, statement);
+        }
+
+        switch (name) {
+            case "save":
+                requireParameters(method, 1);
+                return new QueryPlan(name, metadata.getInsertSql(), args -> handler.handleSave(args[0]));
+            case "saveAsync":
+                requireParameters(method, 1);
+                return new QueryPlan(name, metadata.getInsertSql(), args -> handler.handleSaveAsync(args[0]));
+            case "deleteAsync":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(metadata::getDeleteByIdSql),
+                        args -> handler.handleDeleteAsync(metadata.getEntityClass(), args[0]));
+            case "saveAll":
+                requireParameters(method, 1);
+                return new QueryPlan(name, metadata.getInsertSql(), args -> handler.handleSaveAll((List<?>) args[0]));
+            case "upsert":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(() -> metadata.getUpsertSql(handler.getDatabase())),
+                        args -> handler.handleUpsert(args[0]));
+            case "upsertAll":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(() -> metadata.getUpsertSql(handler.getDatabase())),
+                        args -> handler.handleUpsertAll((List<?>) args[0]));
+            case "findAllById":
+                requireParameters(method, 1);
+                return new QueryPlan(name, null, args -> handler.handleFindAllById(metadata.getEntityClass(), (Collection<?>) args[0]));
+            case "deleteAllById":
+                requireParameters(method, 1);
+                return new QueryPlan(name, null, args -> handler.handleDeleteAllById(metadata.getEntityClass(), (Collection<?>) args[0]));
+            case "existsAllById":
+                requireParameters(method, 1);
+                return new QueryPlan(name, null, args -> handler.handleExistsAllById(metadata.getEntityClass(), (Collection<?>) args[0]));
+            case "findById":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(metadata::getSelectByIdSql),
+                        args -> handler.handleFindById(metadata.getEntityClass(), args[0]));
+            case "delete":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(metadata::getDeleteByIdSql),
+                        args -> handler.handleDeleteById(metadata.getEntityClass(), args[0]));
+            case "existsById":
+                requireParameters(method, 1);
+                return new QueryPlan(name, idSql(metadata::getExistsByIdSql),
+                        args -> handler.handleExistsById(metadata.getEntityClass(), args[0]));
+            case "findAll":
+                if (method.getParameterCount() == 1 && isPageArgument(method.getParameterTypes()[0])) {
+                    PagedQuery query = new PagedQuery(handler, metadata, null, NO_PARAMETERS, 0, 0,
+                            PagedQuery.shapeOf(resultClass(method)), null, Sort.unsorted());
+                    return new QueryPlan(name, metadata.getSelectAllSql(), query::execute);
+                }
+                requireParameters(method, 0);
+                return new QueryPlan(name, metadata.getSelectAllSql(),
+                        args -> handler.handleFindAll(metadata.getEntityClass()));
+            case "streamAll": {
+                requireParameters(method, 0);
+                String sql = metadata.getSelectAllSql();
+                return new QueryPlan(name, sql, args -> handler.executeStream(sql, NO_PARAMETERS, handler.streamingMapper(metadata), args));
+            }
+            case "publishAll": {
+                requireParameters(method, 0);
+                String sql = metadata.getSelectAllSql();
+                return new QueryPlan(name, sql, args -> handler.executePublisher(sql, NO_PARAMETERS, handler.streamingMapper(metadata), args));
+            }
+            case "forEach": {
+                requireParameters(method, 1);
+                String sql = metadata.getSelectAllSql();
+                return new QueryPlan(name, sql, args -> {
+                    try (Stream<Object> rows = handler.executeStream(sql, NO_PARAMETERS, handler.streamingMapper(metadata), args)) {
+                        rows.forEach((Consumer<Object>) args[0]);
+                    }
+                    return null;
+                });
+            }
+            case "findAllParallel": {
+                requireParameters(method, 0);
+                ParallelScan scan = new ParallelScan(handler, metadata);
+                return new QueryPlan(name, metadata.getSelectAllSql(), args -> scan.stream());
+            }
+            case "forEachParallel": {
+                requireParameters(method, 1);
+                ParallelScan scan = new ParallelScan(handler, metadata);
+                return new QueryPlan(name, metadata.getSelectAllSql(), args -> {
+                    try (Stream<Object> rows = scan.stream()) {
+                        rows.forEach((Consumer<Object>) args[0]);
+                    }
+                    return null;
+                });
+            }
+        }
+
+        DerivedQuery query;
+        try {
+            query = DerivedQuery.parse(metadata, name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + " in " + describe(method));
+        }
+        if (query != null) return derivedPlan(method, query);
+
+        throw new IllegalArgumentException("Unsupported repository method: " + describe(method));
+    }
+
+    /*
+        Plan for a derived query method. The SQL is fixed here unless In/NotIn conditions make it depend on the
+        collection sizes, in which case one statement per padded size is built on first use and cached.
+     */
+    private QueryPlan derivedPlan(Method method, DerivedQuery query) {
+        String name = method.getName();
+        Database database = handler.getDatabase();
+        FieldBinding[] bindings = metadata.getBindings(database);
+        int parameters = query.getParameterCount();
+        boolean paged = method.getParameterCount() == parameters + 1 && isPageArgument(method.getParameterTypes()[parameters]);
+        if (!paged) requireParameters(method, parameters);
+        if (paged && (query.getSubject() != DerivedQuery.Subject.FIND || query.getLimit() > 0 || query.isDynamic())) {
+            throw new IllegalArgumentException(describe(method) + ": Pageable and Sort arguments only combine with find queries without Top/First or In conditions");
+        }
+
+        Class<?> returnType = resultClass(method);
+        Projection projection = query.getSubject() == DerivedQuery.Subject.FIND ? projectionOf(method) : null;
+        String select;
+        QueryPlan.ResultHandler resultHandler = null;
+        int limit = query.getLimit();
+        switch (query.getSubject()) {
+            case COUNT:
+                if (query.isDistinct()) {
+                    throw new IllegalArgumentException(describe(method) + ": Distinct is not supported for count queries");
+                }
+                select = metadata.getCountSql();
+                if (returnType == long.class || returnType == Long.class) {
+                    resultHandler = rs -> rs.next() ? rs.getLong(1) : 0L;
+                } else if (returnType == int.class || returnType == Integer.class) {
+                    resultHandler = rs -> rs.next() ? rs.getInt(1) : 0;
+                } else {
+                    throw new IllegalArgumentException(describe(method) + " must return long or int");
+                }
+                break;
+            case EXISTS:
+                if (returnType != boolean.class && returnType != Boolean.class) {
+                    throw new IllegalArgumentException(describe(method) + " must return boolean");
+                }
+                select = "SELECT 1 FROM " + metadata.getTableName();
+                resultHandler = ResultSet::next;
+                limit = 1;
+                break;
+            case DELETE:
+                if (returnType != void.class && returnType != int.class && returnType != Integer.class
+                        && returnType != long.class && returnType != Long.class) {
+                    throw new IllegalArgumentException(describe(method) + " must return void, int or long");
+                }
+                if (limit > 0) throw new IllegalArgumentException(describe(method) + ": Top/First is not supported for deletes");
+                select = "DELETE FROM " + metadata.getTableName();
+                break;
+            default:
+                select = projection == null ? metadata.getSelectAllSql() : projection.getSelectSql();
+                if (query.isDistinct()) select = "SELECT DISTINCT " + select.substring("SELECT ".length());
+        }
+
+        String selectSql = select;
+        int rowLimit = limit;
+        QueryPlan.ParameterBinder binder = (stmt, args) -> {
+            int index = query.bind(stmt, args, bindings, 1);
+            if (rowLimit > 0) database.bindLimit(stmt, index, rowLimit);
+        };
+        String staticWhere = query.isDynamic() ? null : query.where(database, null);
+        Function<Object[], String> sqlFor;
+        if (query.isDynamic()) {
+            Map<String, String> statements = new ConcurrentHashMap<>();
+            sqlFor = args -> {
+                String where = query.where(database, args);
+                return statements.computeIfAbsent(where, w -> derivedSql(database, selectSql, w, query, rowLimit));
+            };
+        } else {
+            String sql = derivedSql(database, selectSql, staticWhere, query, rowLimit);
+            sqlFor = args -> sql;
+        }
+        String planSql = query.isDynamic() ? selectSql : sqlFor.apply(null);
+
+        switch (query.getSubject()) {
+            case COUNT:
+            case EXISTS: {
+                QueryPlan.ResultHandler result = resultHandler;
+                return new QueryPlan(name, planSql, args -> handler.executeQuery(sqlFor.apply(args), binder, result, args));
+            }
+            case DELETE: {
+                boolean asLong = returnType == long.class || returnType == Long.class;
+                return new QueryPlan(name, planSql, args -> {
+                    int rows = handler.handleDeleteWhere(metadata, sqlFor.apply(args), binder, args);
+                    return asLong ? (Object) (long) rows : (Object) rows;
+                });
+            }
+        }
+
+        if (paged) {
+            PagedQuery pagedQuery = new PagedQuery(handler, metadata, staticWhere, binder, parameters, parameters,
+                    PagedQuery.shapeOf(returnType), projection, query.getSort());
+            return new QueryPlan(name, planSql, pagedQuery::execute);
+        }
+        RowMapper<?> projectionMapper = projection == null ? null : projection.getRowMapper();
+        if (Stream.class.isAssignableFrom(returnType)) {
+            return new QueryPlan(name, planSql, args -> handler.executeStream(sqlFor.apply(args), binder,
+                    projectionMapper != null ? projectionMapper : handler.streamingMapper(metadata), args));
+        }
+        if (returnType == Flow.Publisher.class) {
+            return new QueryPlan(name, planSql, args -> handler.executePublisher(sqlFor.apply(args), binder,
+                    projectionMapper != null ? projectionMapper : handler.streamingMapper(metadata), args));
+        }
+        boolean list = List.class.isAssignableFrom(returnType);
+        QueryPlan.ResultHandler rows;
+        if (projectionMapper != null) {
+            rows = list ? rs -> mapAll(rs, projectionMapper) : rs -> rs.next() ? projectionMapper.mapRow(rs) : null;
+        } else {
+            rows = list ? this::mapList : this::mapSingle;
+        }
+        return new QueryPlan(name, planSql, args -> handler.executeQuery(sqlFor.apply(args), binder, rows, args));
+    }
+
+    /*
+        Plan for a @CustomQuery method. Placeholders are matched to arguments here; only collection arguments,
+        which expand to one marker per element, make the SQL differ between calls.
+     */
+    private QueryPlan customPlan(Method method, CustomStatement statement) {
+        String name = method.getName();
+        Database database = handler.getDatabase();
+        Class<?> returnType = resultClass(method);
+        Class<?>[] parameterTypes = method.getParameterTypes();
+
+        if (returnType == int[].class && !statement.isQuery() && parameterTypes.length == 1
+                && Collection.class.isAssignableFrom(parameterTypes[0])) {
+            BatchWriter.ItemBinder binder = batchBinder(method, statement);
+            String sql = statement.getSql();
+            return new QueryPlan(name, sql, args -> handler.handleCustomBatch(sql, new ArrayList<>((Collection<?>) args[0]), binder));
+        }
+
+        List<String> names = statement.getNames();
+        int[] arguments = new int[names.size()];
+        ColumnCodec[] codecs = new ColumnCodec[names.size()];
+        boolean expanding = false;
+        if (!statement.isNamed()) requireParameters(method, names.size());
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = statement.isNamed() ? parameterNamed(method, names.get(i)) : i;
+            Class<?> type = parameterTypes[arguments[i]];
+            if (mayExpand(type)) {
+                expanding = true;
+            } else {
+                codecs[i] = database.getCodec(type);
+            }
+        }
+        /*
+            SQL and binder both expand by the runtime value, so Object or generic parameters holding a collection
+            get a list too. Lists are padded like derived In lists by repeating the last element.
+         */
+        QueryPlan.ParameterBinder binder = (stmt, args) -> {
+            int index = 1;
+            for (int i = 0; i < arguments.length; i++) {
+                Object value = args[arguments[i]];
+                if (isExpanded(value == null ? null : value.getClass())) {
+                    List<Object> elements = elementsOf(value);
+                    int size = expandedSize(database, elements.size());
+                    for (int e = 0; e < size; e++) {
+                        bindValue(database, stmt, index++, elements.get(Math.min(e, elements.size() - 1)), null);
+                    }
+                } else {
+                    bindValue(database, stmt, index++, value, codecs[i]);
+                }
+            }
+        };
+        boolean dynamic = expanding;
+        String fixedSql = statement.getSql();
+        Function<Object[], String> sqlFor = !dynamic ? args -> fixedSql : args -> {
+            int[] sizes = new int[arguments.length];
+            for (int i = 0; i < sizes.length; i++) {
+                Object value = args[arguments[i]];
+                sizes[i] = isExpanded(value == null ? null : value.getClass())
+                        ? expandedSize(database, elementsOf(value).size()) : 1;
+            }
+            return statement.getSql(sizes);
+        };
+
+        if (!statement.isQuery()) {
+            if (returnType == void.class) {
+                return new QueryPlan(name, fixedSql, args -> {
+                    handler.handleCustomQuery(sqlFor.apply(args), binder, args);
+                    return null;
+                });
+            }
+            if (returnType == long.class || returnType == Long.class) {
+                return new QueryPlan(name, fixedSql, args -> (long) handler.handleCustomQuery(sqlFor.apply(args), binder, args));
+            }
+            if (returnType == int.class || returnType == Integer.class) {
+                return new QueryPlan(name, fixedSql, args -> handler.handleCustomQuery(sqlFor.apply(args), binder, args));
+            }
+            throw new IllegalArgumentException(describe(method) + " runs an update and must return void, int or long");
+        }
+
+        boolean stream = Stream.class.isAssignableFrom(returnType);
+        boolean publisher = returnType == Flow.Publisher.class;
+        boolean list = !stream && Collection.class.isAssignableFrom(returnType);
+        boolean readOnly = statement.isReadOnly() && method.getAnnotation(CustomQuery.class).readOnly();
+        if (!readOnly && (stream || publisher)) {
+            throw new IllegalArgumentException(describe(method) + " may modify rows and must return a List or a single value");
+        }
+        Class<?> elementType = stream || publisher || list ? elementTypeOf(method) : returnType;
+        ResultMapperFactory factory;
+        if (elementType == metadata.getEntityClass()) {
+            factory = stream || publisher ? resultMetaData -> handler.streamingMapper(metadata, resultMetaData)
+                    : resultMetaData -> handler.entityMapper(metadata, resultMetaData);
+        } else if (Projection.isProjection(elementType, metadata.getEntityClass())) {
+            Projection projection = Projection.ofResult(metadata, elementType, database);
+            factory = projection::rowMapperFor;
+        } else {
+            ColumnCodec codec = database.getCodec(elementType);
+            RowMapper<?> scalar = rs -> codec.read(rs, 1);
+            factory = resultMetaData -> scalar;
+        }
+
+        if (stream) {
+            return new QueryPlan(name, fixedSql, args -> handler.executeStream(sqlFor.apply(args), binder, lazyMapper(factory), args));
+        }
+        if (publisher) {
+            return new QueryPlan(name, fixedSql, args -> handler.executePublisher(sqlFor.apply(args), binder, lazyMapper(factory), args));
+        }
+        Object empty = returnType.isPrimitive() ? Array.get(Array.newInstance(returnType, 1), 0) : null;
+        QueryPlan.ResultHandler rows = rs -> {
+            RowMapper<?> mapper = factory.create(rs.getMetaData());
+            if (list) return mapAll(rs, mapper);
+            Object row = rs.next() ? mapper.mapRow(rs) : null;
+            return row == null ? empty : row;
+        };
+        if (!readOnly) {
+            return new QueryPlan(name, fixedSql, args -> handler.executeWritingQuery(sqlFor.apply(args), binder, rows, args));
+        }
+        return new QueryPlan(name, fixedSql, args -> handler.executeQuery(sqlFor.apply(args), binder, rows, args));
+    }
+
+    @FunctionalInterface
+    private interface ResultMapperFactory {
+        RowMapper<?> create(ResultSetMetaData resultMetaData) throws SQLException;
+    }
+
+    /*
+        Mapper that resolves its column positions from the first row's ResultSet, for streamed results
+     */
+    private static RowMapper<Object> lazyMapper(ResultMapperFactory factory) {
+        RowMapper<?>[] resolved = new RowMapper<?>[1];
+        return rs -> {
+            if (resolved[0] == null) resolved[0] = factory.create(rs.getMetaData());
+            return resolved[0].mapRow(rs);
+        };
+    }
+
+    /*
+        Binder for batch custom queries: named placeholders read the entity property of that name, positional
+        ones take the elements of an Object[] item, or the item itself for a single placeholder
+     */
+    private BatchWriter.ItemBinder batchBinder(Method method, CustomStatement statement) {
+        Database database = handler.getDatabase();
+        List<String> names = statement.getNames();
+        if (!statement.isNamed()) {
+            int count = names.size();
+            return (stmt, item) -> {
+                if (item instanceof Object[]) {
+                    Object[] values = (Object[]) item;
+                    if (values.length != count) {
+                        throw new IllegalArgumentException(describe(method) + " expects " + count + " values per item, got " + values.length);
+                    }
+                    for (int i = 0; i < count; i++) bindValue(database, stmt, i + 1, values[i], null);
+                } else if (count == 1) {
+                    bindValue(database, stmt, 1, item, null);
+                } else {
+                    throw new IllegalArgumentException(describe(method) + " expects Object[] items for " + count + " placeholders");
+                }
+            };
+        }
+        FieldBinding[] bindings = metadata.getBindings(database);
+        FieldBinding[] placeholders = new FieldBinding[names.size()];
+        for (int i = 0; i < placeholders.length; i++) {
+            int index = metadata.indexOfProperty(names.get(i));
+            if (index < 0) {
+                throw new IllegalArgumentException("No matching field found for: " + names.get(i) + " in " + describe(method));
+            }
+            placeholders[i] = bindings[index];
+        }
+        return (stmt, item) -> {
+            for (int i = 0; i < placeholders.length; i++) {
+                placeholders[i].getCodec().bind(stmt, i + 1, placeholders[i].get(item));
+            }
+        };
+    }
+
+    private static void bindValue(Database database, PreparedStatement stmt, int index, Object value, ColumnCodec codec) throws SQLException {
+        if (codec != null) {
+            codec.bind(stmt, index, value);
+        } else if (value == null) {
+            stmt.setObject(index, null);
+        } else {
+            database.getCodec(value.getClass()).bind(stmt, index, value);
+        }
+    }
+
+    private static boolean isExpanded(Class<?> type) {
+        return type != null && (Collection.class.isAssignableFrom(type) || (type.isArray() && type != byte[].class));
+    }
+
+    /*
+        Whether arguments of the declared type may be collections or arrays at run time
+     */
+    private static boolean mayExpand(Class<?> type) {
+        return isExpanded(type) || type.isAssignableFrom(ArrayList.class) || type.isAssignableFrom(Object[].class);
+    }
+
+    /*
+        Markers for an expanded list of the given size: the next power of two, so few distinct statements are
+        prepared, but no more than the dialect's IN list limit unless the list itself is longer
+     */
+    private static int expandedSize(Database database, int size) {
+        if (size <= 1) return size;
+        int padded = Integer.highestOneBit(size - 1) << 1;
+        return padded <= database.getMaxInListSize() ? padded : size;
+    }
+
+    private static List<Object> elementsOf(Object value) {
+        List<Object> elements = new ArrayList<>();
+        if (value instanceof Collection) {
+            elements.addAll((Collection<?>) value);
+        } else {
+            for (int i = 0; i < Array.getLength(value); i++) elements.add(Array.get(value, i));
+        }
+        return elements;
+    }
+
+    private int parameterNamed(Method method, String name) {
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            Param param = parameters[i].getAnnotation(Param.class);
+            if (param != null ? param.value().equals(name) : parameters[i].isNamePresent() && parameters[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No parameter for :" + name + " in " + describe(method)
+                + " (annotate it with @Param or compile with -parameters)");
+    }
+
+    private Class<?> elementTypeOf(Method method) {
+        Type type = resultType(method);
+        if (type instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (argument instanceof Class) return (Class<?>) argument;
+            if (argument instanceof ParameterizedType) return (Class<?>) ((ParameterizedType) argument).getRawType();
+        }
+        return metadata.getEntityClass();
+    }
+
+    private static String derivedSql(Database database, String select, String where, DerivedQuery query, int limit) {
+        StringBuilder sql = new StringBuilder(select);
+        if (where != null) sql.append(" WHERE ").append(where);
+        if (query.getSubject() == DerivedQuery.Subject.FIND && query.getSort().isSorted()) {
+            sql.append(" ORDER BY ");
+            for (Sort.Order order : query.getSort().getOrders()) {
+                sql.append(order.getProperty()).append(' ').append(order.getDirection()).append(", ");
+            }
+            sql.setLength(sql.length() - 2);
+        }
+        return limit > 0 ? database.getLimitSql(sql.toString()) : sql.toString();
+    }
+
+    /*
+        SQL of a plan keyed by the id, or null for an entity without @Id: such a repository can still be created
+        for its other methods, and the id-based ones fail when called
+     */
+    private String idSql(Supplier<String> sql) {
+        return metadata.hasId() ? sql.get() : null;
+    }
+
+    /*
+        Methods returning CompletableFuture<T> are planned as if they returned T and run on the async executor
+     */
+    private static boolean isAsync(Method method) {
+        return method.getReturnType() == CompletableFuture.class || method.getReturnType() == CompletionStage.class;
+    }
+
+    private QueryPlan asyncPlan(QueryPlan plan) {
+        return new QueryPlan(plan.getMethodName(), plan.getSql(), args -> handler.executeAsync(plan, args));
+    }
+
+    /*
+        Declared result of the method, looking through the future of async methods
+     */
+    private Type resultType(Method method) {
+        Type type = method.getGenericReturnType();
+        if (!isAsync(method)) return type;
+        if (!(type instanceof ParameterizedType)) {
+            throw new IllegalArgumentException(describe(method) + " must declare the result type of its future");
+        }
+        Type result = ((ParameterizedType) type).getActualTypeArguments()[0];
+        return result == Void.class ? void.class : result;
+    }
+
+    private Class<?> resultClass(Method method) {
+        Type type = resultType(method);
+        if (type instanceof Class) return (Class<?>) type;
+        if (type instanceof ParameterizedType) return (Class<?>) ((ParameterizedType) type).getRawType();
+        return Object.class;
+    }
+
+    private static boolean isPageArgument(Class<?> type) {
+        return type == Pageable.class || type == Sort.class;
+    }
+
+    /*
+        Projection for methods whose result element type is a record or interface other than the entity, else null
+     */
+    private Projection projectionOf(Method method) {
+        Type type = resultType(method);
+        if (type instanceof ParameterizedType) {
+            type = ((ParameterizedType) type).getActualTypeArguments()[0];
+        } else if (Iterable.class.isAssignableFrom(resultClass(method)) || Stream.class.isAssignableFrom(resultClass(method))
+                || Slice.class.isAssignableFrom(resultClass(method)) || resultClass(method) == Flow.Publisher.class) {
+            return null;
+        }
+        if (!(type instanceof Class) || !Projection.isProjection((Class<?>) type, metadata.getEntityClass())) return null;
+        return new Projection(metadata, (Class<?>) type, handler.getDatabase());
+    }
+
+    private static List<Object> mapAll(ResultSet rs, RowMapper<?> mapper) throws Exception {
+        List<Object> results = new ArrayList<>();
+        while (rs.next()) results.add(mapper.mapRow(rs));
+        return results;
+    }
+
+    private Object mapSingle(ResultSet rs) throws Exception {
+        return handler.mapSingle(metadata, rs);
+    }
+
+    private Object mapList(ResultSet rs) throws Exception {
+        return handler.mapList(metadata, rs);
+    }
+
+    private void requireParameters(Method method, int count) {
+        if (method.getParameterCount() != count) {
+            throw new IllegalArgumentException(describe(method) + " must take " + count + " parameter(s)");
+        }
+    }
+
+    private String describe(Method method) {
+        return repositoryInterface.getSimpleName() + "." + method.getName()
+                + Arrays.toString(method.getParameterTypes()).replace('[', '(').replace(']', ')');
+    }
+}
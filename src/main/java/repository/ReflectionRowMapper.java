@@ -0,0 +1,70 @@
+package repository;
+
+import databases.ColumnCodec;
+import databases.Database;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    Fallback mapper using Constructor.newInstance and Field.set
+ */
+public class ReflectionRowMapper implements EntityRowMapper {
+
+    private final Class<?> entityClass;
+    private final Field[] fields;
+    private final ColumnCodec[] codecs;
+    private final int[] columnIndexes;
+    private Constructor<?> constructor;
+
+    public ReflectionRowMapper(EntityMetadata metadata, Database database) {
+        this.entityClass = metadata.getEntityClass();
+        FieldBinding[] bindings = metadata.getBindings(database);
+        this.fields = new Field[bindings.length];
+        this.codecs = new ColumnCodec[bindings.length];
+        this.columnIndexes = new int[bindings.length];
+        for (int i = 0; i < bindings.length; i++) {
+            fields[i] = bindings[i].getField();
+            codecs[i] = bindings[i].getCodec();
+            columnIndexes[i] = i + 1;
+        }
+        try {
+            this.constructor = entityClass.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            this.constructor = null;
+        }
+    }
+
+    private ReflectionRowMapper(ReflectionRowMapper source, int[] columnIndexes) {
+        this.entityClass = source.entityClass;
+        this.fields = source.fields;
+        this.codecs = source.codecs;
+        this.constructor = source.constructor;
+        this.columnIndexes = columnIndexes;
+    }
+
+    @Override
+    public EntityRowMapper withColumnIndexes(int[] columnIndexes) {
+        return new ReflectionRowMapper(this, columnIndexes.clone());
+    }
+
+    @Override
+    public Object mapRow(ResultSet rs) throws SQLException {
+        if (constructor == null) throw new RuntimeException("No no-arg constructor found for " + entityClass.getName());
+        try {
+            Object instance = constructor.newInstance();
+            for (int i = 0; i < fields.length; i++) {
+                if (columnIndexes[i] == 0) continue;
+                Object value = codecs[i].read(rs, columnIndexes[i]);
+                if (value == null && fields[i].getType().isPrimitive()) continue;
+                fields[i].set(instance, value);
+            }
+            return instance;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -6,6 +6,10 @@ import java.lang.reflect.Type;
 public class ReflectionUtils {
 
     public static Class<?> getEntityFromClassInterface(Object proxy, Class<?> repoInterface){
+        return getEntityFromClassInterface(repoInterface);
+    }
+
+    public static Class<?> getEntityFromClassInterface(Class<?> repoInterface){
 
         Type[] genericInterfaces = repoInterface.getGenericInterfaces();
 
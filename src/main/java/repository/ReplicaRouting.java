@@ -0,0 +1,11 @@
+package repository;
+
+/*
+    How reads are spread over the replicas of a SQLConnection, see SQLConnection.addReplica
+ */
+public enum ReplicaRouting {
+    /* each read goes to the next replica in turn */
+    ROUND_ROBIN,
+    /* each read goes to the replica with the fewest borrowed connections */
+    LEAST_IN_FLIGHT
+}
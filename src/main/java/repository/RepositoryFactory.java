@@ -3,6 +3,8 @@ package repository;
 import annotations.Table;
 
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RepositoryFactory {
 
@@ -14,7 +16,7 @@ public class RepositoryFactory {
                 new RepositoryHandler(connection, repositoryInterface)
         );
 
-        Class<?> entityClass = ReflectionUtils.getEntityFromClassInterface(repo, repositoryInterface);
+        Class<?> entityClass = ReflectionUtils.getEntityFromClassInterface(repositoryInterface);
         if (entityClass.isAnnotationPresent(Table.class)) {
             Table table = entityClass.getAnnotation(Table.class);
             if (table.autoCreate()) {
@@ -24,4 +26,29 @@ public class RepositoryFactory {
 
         return repo;
     }
+
+    /*
+        Repository over a table split across the given databases by the shard function of the @Id value.
+        Each shard gets its own repository, and its table is created if the entity asks for it.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createShardedRepository(Class<T> repositoryInterface, List<SQLConnection> shards,
+                                                ShardFunction shardFunction) {
+        Class<?> entityClass = ReflectionUtils.getEntityFromClassInterface(repositoryInterface);
+        if (!EntityMetadata.of(entityClass).hasId()) {
+            throw new IllegalArgumentException("Sharded entity " + entityClass.getName() + " needs an @Id to route by");
+        }
+        List<T> repositories = new ArrayList<>(shards.size());
+        for (SQLConnection shard : shards) repositories.add(createRepository(repositoryInterface, shard));
+
+        return (T) Proxy.newProxyInstance(
+                repositoryInterface.getClassLoader(),
+                new Class[]{repositoryInterface},
+                new ShardedRepositoryHandler(repositoryInterface, shards, repositories, shardFunction)
+        );
+    }
+
+    public static <T> T createShardedRepository(Class<T> repositoryInterface, List<SQLConnection> shards) {
+        return createShardedRepository(repositoryInterface, shards, ShardFunction.hashing());
+    }
 }
@@ -1,428 +1,743 @@
 package repository;
 
 import annotations.*;
+import databases.ColumnCodec;
+import databases.Database;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import validation.ConstraintValidator;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
 
 public class RepositoryHandler implements InvocationHandler {
 
     private static final Logger log = LoggerFactory.getLogger(RepositoryHandler.class);
     private final SQLConnection sqlConnection;
     private final Class<?> repositoryInterface;
+    private final Map<Method, QueryPlan> plans;
+    private final BatchWriter batchWriter;
+    private final Session session;
 
     public RepositoryHandler(SQLConnection sqlConnection, Class<?> repositoryInterface) {
+        this(sqlConnection, repositoryInterface, null);
+    }
+
+    /*
+        Handler whose writes are queued on the session and whose results go through its identity map
+     */
+    public RepositoryHandler(SQLConnection sqlConnection, Class<?> repositoryInterface, Session session) {
         this.sqlConnection = sqlConnection;
+        this.session = session;
         this.repositoryInterface = repositoryInterface;
+        this.batchWriter = new BatchWriter(sqlConnection);
+        Class<?> entityClass = ReflectionUtils.getEntityFromClassInterface(repositoryInterface);
+        if (entityClass.isAnnotationPresent(Table.class)) sqlConnection.registerEntityCache(entityClass);
+        this.plans = new QueryPlanner(this, repositoryInterface, entityClass).compile();
     }
 
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        String name = method.getName();
-
-        if (name.equals("save")) {
-            return handleSave(args[0]);
-
-        } else if (name.equals("findById")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            return handleFindById(entityClass, args[0]);
+        QueryPlan plan = plans.get(method);
+        if (plan != null) return plan.execute(args);
 
-        } else if (name.equals("delete")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            return handleDeleteById(entityClass, args[0]);
+        if (method.isDefault()) return InvocationHandler.invokeDefault(proxy, method, args);
+        if (method.getDeclaringClass() == Object.class) return handleObjectMethod(proxy, method, args);
 
-        } else if (name.startsWith("findBy")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            String paramName = name.substring(6);
-            Class<?> returnType = method.getReturnType();
+        throw new UnsupportedOperationException("No query plan for " + method);
+    }
 
-            if (List.class.isAssignableFrom(returnType)) {
-                return handleFindByCustomList(entityClass, args[0], paramName);
-            } else {
-                return handleFindByCustom(entityClass, args[0], paramName);
-            }
+    public Database getDatabase() {
+        return sqlConnection.getDatabase();
+    }
 
-        } else if (name.equals("existsById")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            return handleExistsById(entityClass, args[0]);
+    private Object handleObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals": return proxy == args[0];
+            case "hashCode": return System.identityHashCode(proxy);
+            default: return repositoryInterface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
 
-        } else if (name.equals("existsBy")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            String paramName = name.substring(8);
-            return handleExistsByCustom(entityClass, args[0], paramName);
+    /*
+        Reads run on a replica when the connection has any, see SQLConnection.routeRead. Session reads stay on the
+        primary so that rows merged into the session's identity map all come from the same, current copy of the data.
+        Operations running several queries that must agree, like a page and its count or the bounds and ranges of
+        a parallel scan, pick the source once and pass it to each query.
+     */
+    SQLConnection readSource() {
+        return session != null ? sqlConnection : sqlConnection.routeRead();
+    }
 
-        } else if (method.isAnnotationPresent(CustomQuery.class)) {
-            handleCustomQuery(method.getAnnotation(CustomQuery.class).query());
+    /*
+        Ranges a parallel scan on the source is split into: one per pooled connection, or a single range for
+        non-pooled connections and for sessions, whose identity map belongs to one thread
+     */
+    int scanPartitions(SQLConnection source) {
+        ConnectionPool pool = source.getPool();
+        return session != null || pool == null ? 1 : pool.getMaxSize();
+    }
 
-        } else if (name.equals("findAll")) {
-            Class<?> entityClass = getEntityClass(proxy);
-            return handleFindAll(entityClass);
+    Object executeQuery(String sql, QueryPlan.ParameterBinder binder, QueryPlan.ResultHandler resultHandler, Object[] args) {
+        return executeQuery(readSource(), sql, binder, resultHandler, args);
+    }
 
-        } else if (name.equals("saveAll")) {
-            handleSaveAll((List<?>) args[0]);
+    /*
+        Query that may modify rows, such as a data-modifying WITH or SELECT ... FOR UPDATE. It runs on the primary,
+        counts as a write for read-your-writes and drops the entity caches like other custom statements.
+     */
+    Object executeWritingQuery(String sql, QueryPlan.ParameterBinder binder, QueryPlan.ResultHandler resultHandler, Object[] args) {
+        awaitQueuedWrites();
+        sqlConnection.markWrite();
+        try {
+            return executeQuery(sqlConnection, sql, binder, resultHandler, args);
+        } finally {
+            sqlConnection.clearEntityCaches();
         }
-
-        return null;
     }
 
-    private void handleCustomQuery(String query) {
-        Connection conn = sqlConnection.getConn();
-        try (PreparedStatement stmt = conn.prepareStatement(query)) {
-            stmt.executeUpdate();
-            if (sqlConnection.getLogsEnabled()) log.info(query);
-        } catch (SQLException e) {
+    Object executeQuery(SQLConnection source, String sql, QueryPlan.ParameterBinder binder,
+                                QueryPlan.ResultHandler resultHandler, Object[] args) {
+        Connection conn = acquire(source);
+        PreparedStatement stmt = null;
+        try {
+            stmt = source.prepareStatement(conn, sql);
+            binder.bind(stmt, args);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (sqlConnection.getLogsEnabled()) log.info(source == sqlConnection ? sql : sql + " [replica]");
+                return resultHandler.handle(rs);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            source.closeStatement(conn, sql, stmt);
+            source.release(conn);
         }
     }
 
-    private int handleSave(Object obj) {
+    @SuppressWarnings("unchecked")
+    Stream<Object> executeStream(String sql, QueryPlan.ParameterBinder binder, RowMapper<?> mapper, Object[] args) {
+        return executeStream(readSource(), sql, binder, mapper, args);
+    }
+
+    @SuppressWarnings("unchecked")
+    Stream<Object> executeStream(SQLConnection source, String sql, QueryPlan.ParameterBinder binder, RowMapper<?> mapper, Object[] args) {
         try {
-            ConstraintValidator.validateConstraints(obj.getClass(), obj);
-        } catch (IllegalAccessException e) {
+            return ResultSetSpliterator.open(source, sql, binder, args, (RowMapper<Object>) mapper).stream();
+        } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+    }
 
-        Class<?> clazz = obj.getClass();
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        List<String> columns = new ArrayList<>();
-        List<Object> values = new ArrayList<>();
-
-        for (Field field : clazz.getDeclaredFields()) {
-            field.setAccessible(true);
-            if (!java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
-                String colName = (field.isAnnotationPresent(Column.class) && !field.getAnnotation(Column.class).name().isEmpty())
-                        ? field.getAnnotation(Column.class).name()
-                        : field.getName();
-                columns.add(colName);
-                try {
-                    values.add(field.get(obj));
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
+    /*
+        Runs the plan on the connection's async executor, recording its writes for the calling thread's
+        read-your-writes. Session repositories belong to one thread, so their calls complete before returning.
+     */
+    CompletableFuture<Object> executeAsync(QueryPlan plan, Object[] args) {
+        if (session != null) {
+            try {
+                return CompletableFuture.completedFuture(plan.execute(args));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
             }
         }
+        AtomicLong writes = sqlConnection.writeRecord();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return sqlConnection.withWriteRecord(writes, () -> plan.execute(args));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, sqlConnection.getAsyncExecutor());
+    }
 
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(tableName).append(" (");
-        sql.append(String.join(", ", columns));
-        sql.append(") VALUES (");
-        sql.append("?,".repeat(columns.size()));
-        sql.setLength(sql.length() - 1);
-        sql.append(")");
+    /*
+        Publisher that runs the query per subscription on the async executor, or on the requesting thread for
+        session repositories, whose identity map is not shared between threads
+     */
+    @SuppressWarnings("unchecked")
+    Flow.Publisher<Object> executePublisher(String sql, QueryPlan.ParameterBinder binder, RowMapper<?> mapper, Object[] args) {
+        Executor executor = session != null ? Runnable::run : sqlConnection.getAsyncExecutor();
+        SQLConnection source = readSource();
+        return new ResultSetPublisher<>(() -> ResultSetSpliterator.open(source, sql, binder, args, (RowMapper<Object>) mapper), executor);
+    }
 
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql.toString())) {
-            for (int i = 0; i < values.size(); i++) stmt.setObject(i + 1, values.get(i));
+    int executeUpdate(String sql, QueryPlan.ParameterBinder binder, Object[] args) {
+        awaitQueuedWrites();
+        sqlConnection.markWrite();
+        Connection conn = acquire(sqlConnection);
+        PreparedStatement stmt = null;
+        try {
+            stmt = sqlConnection.prepareStatement(conn, sql);
+            binder.bind(stmt, args);
             int rows = stmt.executeUpdate();
-            if (sqlConnection.getLogsEnabled()) log.info(sql.toString());
+            if (sqlConnection.getLogsEnabled()) log.info(sql);
             return rows;
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            sqlConnection.closeStatement(conn, sql, stmt);
+            sqlConnection.release(conn);
         }
     }
 
-    public <T> T handleFindById(Class<T> clazz, Object idValue) {
-        checkAndThrow(clazz);
-
-        String tableName = clazz.getAnnotation(Table.class).name();
-        Field idField = null;
-        List<Field> fields = new ArrayList<>();
+    /*
+        Custom statements may touch any row of any table, so they drop every cached entity
+     */
+    int handleCustomQuery(String sql, QueryPlan.ParameterBinder binder, Object[] args) {
+        try {
+            return executeUpdate(sql, binder, args);
+        } finally {
+            sqlConnection.clearEntityCaches();
+        }
+    }
 
-        for (Field field : clazz.getDeclaredFields()) {
-            field.setAccessible(true);
-            if (field.isAnnotationPresent(Id.class)) idField = field;
-            if (field.isAnnotationPresent(Column.class) || field.isAnnotationPresent(Id.class)) fields.add(field);
+    int[] handleCustomBatch(String sql, List<?> items, BatchWriter.ItemBinder binder) {
+        if (items.isEmpty()) return new int[0];
+        awaitQueuedWrites();
+        try {
+            return batchWriter.inTransaction(conn -> batchWriter.executeBatched(conn, sql, items, binder));
+        } finally {
+            sqlConnection.clearEntityCaches();
         }
+    }
 
-        if (idField == null) throw new RuntimeException("No @Id field found.");
+    /*
+        Derived deletes do not know which ids they remove, so the entity's whole cache is dropped
+     */
+    int handleDeleteWhere(EntityMetadata metadata, String sql, QueryPlan.ParameterBinder binder, Object[] args) {
+        try {
+            return executeUpdate(sql, binder, args);
+        } finally {
+            EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+            if (cache != null) cache.clear();
+        }
+    }
 
-        String idColumn = idField.isAnnotationPresent(Column.class) && !idField.getAnnotation(Column.class).name().isEmpty()
-                ? idField.getAnnotation(Column.class).name()
-                : idField.getName();
+    int handleSave(Object obj) {
+        validate(obj);
 
-        String sql = "SELECT * FROM " + tableName + " WHERE " + idColumn + " = ?";
+        if (session != null) return session.queueSave(obj);
+        EntityMetadata metadata = EntityMetadata.of(obj.getClass());
+        CompletableFuture<Integer> queued = writeBehind(queue -> queue.save(metadata, obj));
+        if (queued != null) return await(queued);
+        Object[] snapshot = metadata.hasId() ? metadata.snapshotOf(obj) : null;
+        if (snapshot != null) return update(metadata, obj, snapshot);
+        try {
+            int rows = executeUpdate(metadata.getInsertSql(), (stmt, args) -> metadata.bindValues(getDatabase(), obj, stmt, 1), null);
+            if (metadata.hasId()) metadata.snapshot(obj);
+            return rows;
+        } finally {
+            invalidate(metadata, obj);
+        }
+    }
 
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
+    /*
+        Future of a save that completes once the row is committed. With write-behind enabled the write joins the
+        next group commit, otherwise it runs before returning.
+     */
+    CompletableFuture<Integer> handleSaveAsync(Object obj) {
+        try {
+            if (session != null) return CompletableFuture.completedFuture(handleSave(obj));
+            validate(obj);
+            CompletableFuture<Integer> queued = writeBehind(queue -> queue.save(EntityMetadata.of(obj.getClass()), obj));
+            return queued != null ? queued : CompletableFuture.completedFuture(handleSave(obj));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-            Class<?> type = idField.getType();
-            if (type == Integer.class || type == int.class) {
-                stmt.setInt(1, (Integer) idValue);
-            } else if (type == Long.class || type == long.class) {
-                stmt.setLong(1, (Long) idValue);
-            } else if (type == Double.class || type == double.class) {
-                stmt.setDouble(1, (Double) idValue);
-            } else if (type == Float.class || type == float.class) {
-                stmt.setFloat(1, (Float) idValue);
-            } else {
-                stmt.setObject(1, idValue);
-            }
+    /*
+        Queues a write-behind write, or returns null if write-behind is off. A queue closed meanwhile by
+        enableWriteBehind or disableWriteBehind refuses the write, which then goes to the queue replacing it or,
+        if there is none, is left to the caller to run directly.
+     */
+    /*
+        Writes that bypass the write-behind queue (upserts, batches, derived deletes, custom statements) first wait
+        for the writes already queued, so they never overtake an earlier saveAsync or deleteAsync of the same row
+     */
+    private void awaitQueuedWrites() {
+        WriteBehindQueue queue = sqlConnection.getWriteBehindQueue();
+        if (queue != null) queue.flush();
+    }
 
-            ResultSet rs = stmt.executeQuery();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
+    private CompletableFuture<Integer> writeBehind(Function<WriteBehindQueue, CompletableFuture<Integer>> write) {
+        WriteBehindQueue queue = sqlConnection.getWriteBehindQueue();
+        while (queue != null) {
+            sqlConnection.markWrite();
+            CompletableFuture<Integer> result = write.apply(queue);
+            if (result != null) return result;
+            WriteBehindQueue current = sqlConnection.getWriteBehindQueue();
+            queue = current == queue ? null : current;
+        }
+        return null;
+    }
 
-            if (rs.next()) {
-                T instance = clazz.getDeclaredConstructor().newInstance();
-                for (Field field : fields) {
-                    field.setAccessible(true);
-                    String colName = field.isAnnotationPresent(Column.class) && !field.getAnnotation(Column.class).name().isEmpty()
-                            ? field.getAnnotation(Column.class).name()
-                            : field.getName();
-                    field.set(instance, rs.getObject(colName));
-                }
-                return instance;
-            }
-            return null;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    CompletableFuture<Integer> handleDeleteAsync(Class<?> clazz, Object idValue) {
+        try {
+            if (session != null) return CompletableFuture.completedFuture(handleDeleteById(clazz, idValue));
+            CompletableFuture<Integer> queued = writeBehind(queue -> queue.delete(EntityMetadata.of(clazz), idValue));
+            return queued != null ? queued : CompletableFuture.completedFuture(handleDeleteById(clazz, idValue));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    public int handleDeleteById(Class<?> clazz, Object idValue) {
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        String idColumn = null;
-        for (Field field : clazz.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Id.class)) {
-                idColumn = field.isAnnotationPresent(Column.class) ? field.getAnnotation(Column.class).name() : field.getName();
-                break;
-            }
+    private static int await(CompletableFuture<Integer> write) {
+        try {
+            return write.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
         }
-        String sql = "DELETE FROM " + tableName + " WHERE " + idColumn + " = ?";
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
-            stmt.setObject(1, idValue);
-            int rows = stmt.executeUpdate();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
+    }
+
+    /*
+        Inserts the entity, or overwrites the row with its id, in one statement
+     */
+    int handleUpsert(Object obj) {
+        validate(obj);
+        if (session != null) return session.queueUpsert(obj);
+        EntityMetadata metadata = EntityMetadata.of(obj.getClass());
+        try {
+            int rows = executeUpdate(metadata.getUpsertSql(getDatabase()),
+                    (stmt, args) -> metadata.bindValues(getDatabase(), obj, stmt, 1), null);
+            metadata.snapshot(obj);
             return rows;
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+        } finally {
+            invalidate(metadata, obj);
         }
     }
 
-    public <T> List<T> handleFindByCustomList(Class<T> clazz, Object param, String paramName) {
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        paramName = Character.toLowerCase(paramName.charAt(0)) + paramName.substring(1);
-
-        Field targetField = null;
-        for (Field field : clazz.getDeclaredFields()) {
-            field.setAccessible(true);
-            Column col = field.getAnnotation(Column.class);
-            String colName = (col != null && !col.name().isEmpty()) ? col.name() : field.getName();
-            if (colName.equalsIgnoreCase(paramName) || field.getName().equalsIgnoreCase(paramName)) {
-                targetField = field;
-                paramName = colName;
-                break;
-            }
+    /*
+        Upserts all entities in one transaction using JDBC batching, returning the row count of each batch
+     */
+    <T> int[] handleUpsertAll(List<T> entities) {
+        if (entities.isEmpty()) return new int[0];
+        for (T entity : entities) validate(entity);
+        if (session != null) {
+            for (T entity : entities) session.queueUpsert(entity);
+            return new int[]{entities.size()};
         }
-        if (targetField == null)
-            throw new RuntimeException("No matching field found for: " + paramName);
-
-        String sql = "SELECT * FROM " + tableName + " WHERE " + paramName + " = ?";
-
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
-            Class<?> type = targetField.getType();
-            if (type == Integer.class || type == int.class) stmt.setInt(1, (Integer) param);
-            else if (type == Long.class || type == long.class) stmt.setLong(1, (Long) param);
-            else if (type == Double.class || type == double.class) stmt.setDouble(1, (Double) param);
-            else if (type == Float.class || type == float.class) stmt.setFloat(1, (Float) param);
-            else stmt.setObject(1, param);
 
-            List<T> results = new ArrayList<>();
-            ResultSet rs = stmt.executeQuery();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
-
-            while (rs.next()) {
-                T instance = clazz.getDeclaredConstructor().newInstance();
-                for (Field field : clazz.getDeclaredFields()) {
-                    field.setAccessible(true);
-                    String colName = field.isAnnotationPresent(Column.class) && !field.getAnnotation(Column.class).name().isEmpty()
-                            ? field.getAnnotation(Column.class).name()
-                            : field.getName();
-                    field.set(instance, rs.getObject(colName));
-                }
-                results.add(instance);
-            }
+        EntityMetadata metadata = EntityMetadata.of(entities.get(0).getClass());
+        awaitQueuedWrites();
+        try {
+            int[] results = batchWriter.inTransaction(conn -> batchWriter.upsert(conn, metadata, entities));
+            for (T entity : entities) metadata.snapshot(entity);
             return results;
+        } finally {
+            for (T entity : entities) invalidate(metadata, entity);
+        }
+    }
 
-        } catch (Exception e) {
+    private static void validate(Object obj) {
+        try {
+            ConstraintValidator.validateConstraints(obj.getClass(), obj);
+        } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public <T> T handleFindByCustom(Class<T> clazz, Object param, String paramName) {
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        paramName = Character.toLowerCase(paramName.charAt(0)) + paramName.substring(1);
-
-        Field targetField = null;
-        for (Field field : clazz.getDeclaredFields()) {
-            field.setAccessible(true);
-            Column col = field.getAnnotation(Column.class);
-            String colName = (col != null && !col.name().isEmpty()) ? col.name() : field.getName();
-            if (colName.equalsIgnoreCase(paramName) || field.getName().equalsIgnoreCase(paramName)) {
-                targetField = field;
-                paramName = colName;
-                break;
+    /*
+        Writes only the columns that changed since the entity was loaded or last saved, or nothing if none did
+     */
+    private int update(EntityMetadata metadata, Object obj, Object[] snapshot) {
+        BitSet changed = metadata.changedColumns(snapshot, metadata.valuesOf(obj));
+        if (changed.isEmpty()) return 0;
+        try {
+            int rows = executeUpdate(metadata.updateSql(changed),
+                    (stmt, args) -> metadata.bindUpdate(getDatabase(), obj, changed, snapshot, stmt), null);
+            metadata.snapshot(obj);
+            return rows;
+        } finally {
+            EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+            if (cache != null) {
+                cache.invalidate(snapshot[metadata.getIdIndex()]);
+                cache.invalidate(metadata.idValueOf(obj));
             }
         }
-        if (targetField == null)
-            throw new RuntimeException("No matching field found for: " + paramName);
-
-        String sql = "SELECT * FROM " + tableName + " WHERE " + paramName + " = ?";
+    }
 
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
-            Class<?> type = targetField.getType();
-            if (type == Integer.class || type == int.class) stmt.setInt(1, (Integer) param);
-            else if (type == Long.class || type == long.class) stmt.setLong(1, (Long) param);
-            else if (type == Double.class || type == double.class) stmt.setDouble(1, (Double) param);
-            else if (type == Float.class || type == float.class) stmt.setFloat(1, (Float) param);
-            else stmt.setObject(1, param);
+    @SuppressWarnings("unchecked")
+    public <T> T handleFindById(Class<T> clazz, Object idValue) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        if (session != null && idValue != null) return (T) session.find(metadata, idValue, () -> loadCached(metadata, idValue));
+        return (T) loadCached(metadata, idValue);
+    }
 
-            ResultSet rs = stmt.executeQuery();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
+    private Object loadCached(EntityMetadata metadata, Object idValue) {
+        EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+        if (cache == null || idValue == null) return loadById(metadata, idValue);
 
-            if (rs.next()) {
-                T instance = clazz.getDeclaredConstructor().newInstance();
-                for (Field field : clazz.getDeclaredFields()) {
-                    field.setAccessible(true);
-                    String colName = field.isAnnotationPresent(Column.class) && !field.getAnnotation(Column.class).name().isEmpty()
-                            ? field.getAnnotation(Column.class).name()
-                            : field.getName();
-                    field.set(instance, rs.getObject(colName));
-                }
-                return instance;
-            }
-            return null;
+        Object cached = cache.get(idValue);
+        if (cached != null) {
+            metadata.snapshot(cached);
+            return cached;
+        }
+        long stamp = cache.stamp();
+        Object entity = loadById(metadata, idValue);
+        cache.put(idValue, entity, stamp);
+        return entity;
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /*
+        Single-row load, coalesced with other threads' loads unless the handler is bound to a session
+     */
+    private Object loadById(EntityMetadata metadata, Object idValue) {
+        SQLConnection source = idReadSource(metadata);
+        FindByIdCoalescer coalescer = session != null || idValue == null ? null : sqlConnection.coalescerFor(metadata);
+        if (coalescer != null) {
+            return coalescer.load(idValue, source, (ids, batchSource) -> loadAllById(metadata, ids, batchSource));
         }
+
+        ColumnCodec idCodec = metadata.getIdCodec(getDatabase());
+        return executeQuery(source, metadata.getSelectByIdSql(),
+                (stmt, args) -> idCodec.bind(stmt, 1, idValue),
+                rs -> rs.next() ? trackingMapper(metadata).mapRow(rs) : null, null);
     }
 
-    public boolean handleExistsByCustom(Class<?> clazz, Object param, String paramName) {
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        paramName = Character.toLowerCase(paramName.charAt(0)) + paramName.substring(1);
-        String sql = "SELECT EXISTS(SELECT 1 FROM " + tableName + " WHERE " + paramName + " = ?)";
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
-            stmt.setObject(1, param);
-            ResultSet rs = stmt.executeQuery();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
-            if (rs.next()) return rs.getBoolean(1);
-            return false;
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    /*
+        Source for loading entities by id: the primary if the entity is cached, since a row read from a lagging
+        replica right after a write would stay cached for the whole TTL, even for callers with read-your-writes
+     */
+    private SQLConnection idReadSource(EntityMetadata metadata) {
+        return sqlConnection.getEntityCache(metadata.getEntityClass()) != null ? sqlConnection : readSource();
+    }
+
+    public int handleDeleteById(Class<?> clazz, Object idValue) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        if (session != null) return session.queueDelete(metadata, idValue);
+        CompletableFuture<Integer> queued = writeBehind(queue -> queue.delete(metadata, idValue));
+        if (queued != null) return await(queued);
+        ColumnCodec idCodec = metadata.getIdCodec(getDatabase());
+        try {
+            return executeUpdate(metadata.getDeleteByIdSql(), (stmt, args) -> idCodec.bind(stmt, 1, idValue), null);
+        } finally {
+            EntityCache cache = sqlConnection.getEntityCache(clazz);
+            if (cache != null) cache.invalidate(idValue);
         }
     }
 
-    public boolean handleExistsById(Class<?> clazz, Object idValue) {
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        String idColumn = null;
-        for (Field field : clazz.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Id.class)) {
-                idColumn = field.isAnnotationPresent(Column.class) ? field.getAnnotation(Column.class).name() : field.getName();
-                break;
+    /*
+        Loads every id with as few statements as the dialect allows, see idChunks. The map iterates in the order
+        of the given ids and leaves out ids that do not exist.
+     */
+    public Map<Object, Object> handleFindAllById(Class<?> clazz, Collection<?> ids) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        Set<Object> distinct = distinctIds(ids);
+        EntityCache cache = sqlConnection.getEntityCache(clazz);
+
+        Map<Object, Object> found = new HashMap<>();
+        List<Object> missing = new ArrayList<>();
+        for (Object id : distinct) {
+            if (session != null) {
+                Object managed = session.lookup(metadata, id);
+                if (managed != null) {
+                    found.put(id, managed);
+                    continue;
+                }
+                if (Boolean.FALSE.equals(session.exists(metadata, id))) continue;
+            }
+            Object cached = cache == null ? null : cache.get(id);
+            if (cached != null) {
+                metadata.snapshot(cached);
+                found.put(id, session != null ? session.attach(metadata, cached) : cached);
+            } else {
+                missing.add(id);
             }
         }
-        String sql = "SELECT EXISTS(SELECT 1 FROM " + tableName + " WHERE " + idColumn + " = ?)";
-        try (PreparedStatement stmt = sqlConnection.getConn().prepareStatement(sql)) {
-            stmt.setObject(1, idValue);
-            ResultSet rs = stmt.executeQuery();
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
-            if (rs.next()) return rs.getBoolean(1);
-            return false;
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+
+        long stamp = cache == null ? 0 : cache.stamp();
+        for (Map.Entry<Object, Object> row : loadAllById(metadata, missing, idReadSource(metadata)).entrySet()) {
+            if (cache != null) cache.put(row.getKey(), row.getValue(), stamp);
+            found.put(row.getKey(), session != null ? session.attach(metadata, row.getValue()) : row.getValue());
+        }
+
+        Map<Object, Object> result = new LinkedHashMap<>();
+        for (Object id : distinct) {
+            Object entity = found.get(id);
+            if (entity != null) result.put(id, entity);
         }
+        return result;
     }
 
-    public <T> List<T> handleFindAll(Class<T> clazz) {
-        checkAndThrow(clazz);
-        List<T> list = new ArrayList<>();
-        String tableName = clazz.getAnnotation(Table.class).name();
-        String sql = "SELECT * FROM " + tableName;
-        try (Statement stmt = sqlConnection.getConn().createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            Field[] fields = clazz.getDeclaredFields();
-            while (rs.next()) {
-                T obj = clazz.getDeclaredConstructor().newInstance();
-                for (Field field : fields) {
-                    field.setAccessible(true); // <-- important
-                    String colName = field.isAnnotationPresent(Column.class) ? field.getAnnotation(Column.class).name() : field.getName();
-                    if (colName.isEmpty()) colName = field.getName();
-                    field.set(obj, rs.getObject(colName));
+    /*
+        Rows of the ids by id, read straight from the source. Entities are not attached to the session.
+     */
+    private Map<Object, Object> loadAllById(EntityMetadata metadata, List<Object> ids, SQLConnection source) {
+        RowMapper<?> mapper = trackingMapper(metadata);
+        Map<Object, Object> found = new HashMap<>();
+        for (IdChunk chunk : idChunks(metadata, ids, size -> metadata.selectByIdsSql(getDatabase(), size))) {
+            executeQuery(source, chunk.sql, chunk.binder, rs -> {
+                while (rs.next()) {
+                    Object entity = mapper.mapRow(rs);
+                    found.put(metadata.idValueOf(entity), entity);
                 }
-                list.add(obj);
-            }
-            if (sqlConnection.getLogsEnabled()) log.info(sql);
-            return list;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+                return null;
+            }, null);
         }
+        return found;
     }
 
-    public <T> void handleSaveAll(List<T> entities) {
-        if (entities.isEmpty()) return;
-        Connection conn = sqlConnection.getConn();
+    /*
+        Deletes every id in one transaction, returning the number of deleted rows
+     */
+    public int handleDeleteAllById(Class<?> clazz, Collection<?> ids) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        Set<Object> distinct = distinctIds(ids);
+        if (session != null) {
+            for (Object id : distinct) session.queueDelete(metadata, id);
+            return distinct.size();
+        }
+        if (distinct.isEmpty()) return 0;
+
+        List<IdChunk> chunks = idChunks(metadata, new ArrayList<>(distinct), size -> metadata.deleteByIdsSql(getDatabase(), size));
+        awaitQueuedWrites();
         try {
-            conn.setAutoCommit(false);
-            for (T entity : entities) handleSaveWithConnection(conn, entity);
-            conn.commit();
-        } catch (Exception e) {
-            try { conn.rollback(); } catch (SQLException ignored) {}
-            throw new RuntimeException(e);
+            return batchWriter.inTransaction(conn -> {
+                int rows = 0;
+                for (IdChunk chunk : chunks) rows += batchWriter.executeUpdate(conn, chunk.sql, chunk.binder);
+                return rows;
+            });
         } finally {
-            try { conn.setAutoCommit(true); } catch (SQLException ignored) {}
+            EntityCache cache = sqlConnection.getEntityCache(clazz);
+            if (cache != null) for (Object id : distinct) cache.invalidate(id);
+        }
+    }
+
+    /*
+        Whether a row exists for every one of the ids, checked with COUNT queries over id lists
+     */
+    public boolean handleExistsAllById(Class<?> clazz, Collection<?> ids) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        Set<Object> distinct = distinctIds(ids);
+        List<Object> unknown = new ArrayList<>();
+        for (Object id : distinct) {
+            Boolean known = session != null ? session.exists(metadata, id) : null;
+            if (Boolean.FALSE.equals(known)) return false;
+            if (known == null) unknown.add(id);
+        }
+
+        long count = 0;
+        for (IdChunk chunk : idChunks(metadata, unknown, size -> metadata.countByIdsSql(getDatabase(), size))) {
+            count += (Long) executeQuery(chunk.sql, chunk.binder, rs -> rs.next() ? rs.getLong(1) : 0L, null);
+        }
+        return count == unknown.size();
+    }
+
+    private static Set<Object> distinctIds(Collection<?> ids) {
+        Set<Object> distinct = new LinkedHashSet<>();
+        for (Object id : ids) {
+            if (id == null) throw new IllegalArgumentException("Ids must not be null");
+            distinct.add(id);
+        }
+        return distinct;
+    }
+
+    private static final class IdChunk {
+        private final String sql;
+        private final QueryPlan.ParameterBinder binder;
+
+        private IdChunk(String sql, QueryPlan.ParameterBinder binder) {
+            this.sql = sql;
+            this.binder = binder;
         }
     }
 
-    private int handleSaveWithConnection(Connection conn, Object obj) {
+    /*
+        Statements covering the ids: a single array-bound statement where the dialect supports arrays of the id type,
+        otherwise IN lists of at most Database.getMaxInListSize() ids. IN lists are padded to a power of two by
+        repeating the last id, so only a handful of distinct statements are ever prepared and cached.
+     */
+    private List<IdChunk> idChunks(EntityMetadata metadata, List<Object> ids, IntFunction<String> sqlForSize) {
+        List<IdChunk> chunks = new ArrayList<>();
+        if (ids.isEmpty()) return chunks;
+
+        Database database = getDatabase();
+        String elementType = database.getArrayMatchSql(metadata.getIdColumn()) == null
+                ? null
+                : database.getArrayElementType(metadata.getIdField().getType());
+        if (elementType != null) {
+            Object[] values = ids.toArray();
+            chunks.add(new IdChunk(sqlForSize.apply(0),
+                    (stmt, args) -> stmt.setArray(1, stmt.getConnection().createArrayOf(elementType, values))));
+            return chunks;
+        }
+
+        ColumnCodec idCodec = metadata.getIdCodec(database);
+        int max = database.getMaxInListSize();
+        for (int start = 0; start < ids.size(); start += max) {
+            List<Object> chunk = ids.subList(start, Math.min(ids.size(), start + max));
+            int size = Math.min(max, Integer.highestOneBit(chunk.size() - 1) << 1);
+            int padded = Math.max(size, chunk.size());
+            chunks.add(new IdChunk(sqlForSize.apply(padded), (stmt, args) -> {
+                for (int i = 0; i < padded; i++) idCodec.bind(stmt, i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+            }));
+        }
+        return chunks;
+    }
+
+    public boolean handleExistsById(Class<?> clazz, Object idValue) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        if (session != null && idValue != null) {
+            Boolean known = session.exists(metadata, idValue);
+            if (known != null) return known;
+        }
+        EntityCache cache = sqlConnection.getEntityCache(clazz);
+        if (cache != null && idValue != null && cache.contains(idValue)) return true;
+        ColumnCodec idCodec = metadata.getIdCodec(getDatabase());
+        return (Boolean) executeQuery(metadata.getExistsByIdSql(),
+                (stmt, args) -> idCodec.bind(stmt, 1, idValue),
+                rs -> rs.next() && rs.getBoolean(1), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> List<T> handleFindAll(Class<T> clazz) {
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        return (List<T>) executeQuery(metadata.getSelectAllSql(), (stmt, args) -> {}, rs -> mapList(metadata, rs), null);
+    }
+
+    /*
+        Runs the whole list in one transaction on a single borrowed connection, sending rows in batches of
+        SQLConnection.getBatchSize(). New entities are inserted; loaded or already saved ones are updated, batched by
+        the set of changed columns. Returns the number of rows written by each insert batch, then each update batch, or
+        Statement.SUCCESS_NO_INFO for batches the driver did not report counts for.
+        In non-pooled mode the connection is shared, so concurrent callers should use a pooled SQLConnection.
+     */
+    public <T> int[] handleSaveAll(List<T> entities) {
+        if (entities.isEmpty()) return new int[0];
+        if (session != null) {
+            for (T entity : entities) session.queueSave(entity);
+            return new int[]{entities.size()};
+        }
         try {
-            ConstraintValidator.validateConstraints(obj.getClass(), obj);
+            for (T entity : entities) ConstraintValidator.validateConstraints(entity.getClass(), entity);
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
-        Class<?> clazz = obj.getClass();
-        checkAndThrow(clazz);
-        String tableName = clazz.getAnnotation(Table.class).name();
-        List<String> columns = new ArrayList<>();
-        List<Object> values = new ArrayList<>();
-        for (Field field : clazz.getDeclaredFields()) {
-            field.setAccessible(true);
-            String colName = field.isAnnotationPresent(Column.class) ? field.getAnnotation(Column.class).name() : field.getName();
-            if(colName.isEmpty()) colName = field.getName();
-            try { values.add(field.get(obj)); } catch (IllegalAccessException e) { throw new RuntimeException(e); }
-            columns.add(colName);
-        }
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(tableName).append(" (");
-        sql.append(String.join(", ", columns));
-        sql.append(") VALUES (");
-        sql.append("?,".repeat(columns.size()));
-        sql.setLength(sql.length() - 1);
-        sql.append(")");
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-            for (int i = 0; i < values.size(); i++) stmt.setObject(i + 1, values.get(i));
-            if (sqlConnection.getLogsEnabled()) log.info(sql.toString());
-            return stmt.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+
+        EntityMetadata metadata = EntityMetadata.of(entities.get(0).getClass());
+        List<Object> inserts = new ArrayList<>();
+        List<Object> updates = new ArrayList<>();
+        List<Object> previousIds = new ArrayList<>();
+        for (T entity : entities) {
+            Object[] snapshot = metadata.hasId() ? metadata.snapshotOf(entity) : null;
+            if (snapshot == null) {
+                inserts.add(entity);
+            } else {
+                updates.add(entity);
+                previousIds.add(snapshot[metadata.getIdIndex()]);
+            }
         }
+
+        awaitQueuedWrites();
+        try {
+            int[] results = batchWriter.inTransaction(conn -> BatchWriter.concat(
+                    inserts.isEmpty() ? new int[0] : batchWriter.insert(conn, metadata, inserts),
+                    updates.isEmpty() ? new int[0] : batchWriter.update(conn, metadata, updates)));
+            if (metadata.hasId()) for (T entity : entities) metadata.snapshot(entity);
+            return results;
+        } finally {
+            for (T entity : entities) invalidate(metadata, entity);
+            EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+            if (cache != null) for (Object id : previousIds) cache.invalidate(id);
+        }
+    }
+
+    private void invalidate(EntityMetadata metadata, Object entity) {
+        EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+        if (cache != null) cache.invalidate(metadata.idValueOf(entity));
+    }
+
+    /*
+        Mapper for entity rows of this repository, resolving rows through the session identity map if there is one
+     */
+    RowMapper<?> entityMapper(EntityMetadata metadata) {
+        return attached(metadata, trackingMapper(metadata));
+    }
+
+    /*
+        entityMapper for a result with an arbitrary column list, such as that of a custom query
+     */
+    RowMapper<?> entityMapper(EntityMetadata metadata, ResultSetMetaData resultMetaData) throws SQLException {
+        return attached(metadata, trackingMapper(metadata, metadata.rowMapperFor(getDatabase(), resultMetaData)));
+    }
+
+    /*
+        entityMapper for rows handed out one at a time by streams, publishers and parallel scans. Outside a session
+        these entities are not snapshotted, so a large result does not keep a copy of every row; save inserts them,
+        upsert writes them back. A session keeps every row in its identity map anyway and tracks them as usual.
+     */
+    RowMapper<?> streamingMapper(EntityMetadata metadata) {
+        if (session != null) return entityMapper(metadata);
+        return metadata.getRowMapper(getDatabase());
+    }
+
+    RowMapper<?> streamingMapper(EntityMetadata metadata, ResultSetMetaData resultMetaData) throws SQLException {
+        if (session != null) return entityMapper(metadata, resultMetaData);
+        return metadata.rowMapperFor(getDatabase(), resultMetaData);
     }
 
-    private void checkAndThrow(Class<?> clazz) {
-        if (!clazz.isAnnotationPresent(Table.class)) throw new IllegalArgumentException("Class must have @Table annotation.");
+    private RowMapper<?> attached(EntityMetadata metadata, RowMapper<?> mapper) {
+        if (session == null) return mapper;
+        return rs -> session.attach(metadata, mapper.mapRow(rs));
     }
 
-    private Class<?> getEntityClass(Object proxy) {
-        return ReflectionUtils.getEntityFromClassInterface(proxy, repositoryInterface);
+    /*
+        Mapper that snapshots every loaded entity, so a later save can update only the changed columns
+     */
+    private RowMapper<?> trackingMapper(EntityMetadata metadata) {
+        return trackingMapper(metadata, metadata.getRowMapper(getDatabase()));
+    }
+
+    private static RowMapper<?> trackingMapper(EntityMetadata metadata, RowMapper<?> mapper) {
+        if (!metadata.hasId()) return mapper;
+        return rs -> {
+            Object entity = mapper.mapRow(rs);
+            if (entity != null) metadata.snapshot(entity);
+            return entity;
+        };
+    }
+
+    Object mapSingle(EntityMetadata metadata, ResultSet rs) throws SQLException {
+        return rs.next() ? entityMapper(metadata).mapRow(rs) : null;
+    }
+
+    List<Object> mapList(EntityMetadata metadata, ResultSet rs) throws SQLException {
+        RowMapper<?> mapper = entityMapper(metadata);
+        List<Object> results = new ArrayList<>();
+        while (rs.next()) results.add(mapper.mapRow(rs));
+        return results;
+    }
+
+    private static Connection acquire(SQLConnection source) {
+        try {
+            return source.acquire();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
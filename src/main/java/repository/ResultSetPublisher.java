@@ -0,0 +1,128 @@
+package repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Cold Flow.Publisher over a streaming query. Each subscription runs the query on the first request and then
+    reads only as many rows as the subscriber has asked for, so the driver fetches fetch-size chunks as demand
+    arrives and at most one chunk is held in memory. Rows are delivered on the executor, one drain at a time.
+    Cancelling cancels the running statement and gives the connection back.
+ */
+public class ResultSetPublisher<T> implements Flow.Publisher<T> {
+
+    @FunctionalInterface
+    public interface QueryOpener<T> {
+        ResultSetSpliterator<T> open() throws SQLException;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(ResultSetPublisher.class);
+
+    private final QueryOpener<T> opener;
+    private final Executor executor;
+
+    public ResultSetPublisher(QueryOpener<T> opener, Executor executor) {
+        this.opener = opener;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+    private final class RowSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile ResultSetSpliterator<T> rows;
+        private Throwable invalidRequest;
+        private boolean done;
+
+        private RowSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Subscription request must be positive, was " + n);
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            ResultSetSpliterator<T> current = rows;
+            if (current != null) current.cancel();
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        /*
+            Drain loop. Only one thread runs it at a time; requests and cancels arriving meanwhile are picked up
+            before it returns.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (invalidRequest != null) {
+                terminate();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+            long requested = demand.get();
+            if (requested == 0) return;
+            try {
+                if (rows == null) rows = opener.open();
+                long emitted = 0;
+                while (emitted < requested && !cancelled) {
+                    if (!rows.tryAdvance(subscriber::onNext)) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    emitted++;
+                }
+                if (requested != Long.MAX_VALUE) demand.addAndGet(-emitted);
+                if (cancelled) terminate();
+            } catch (Throwable t) {
+                terminate();
+                if (!cancelled) subscriber.onError(t instanceof SQLException ? new RuntimeException(t) : t);
+                else log.debug("Streaming query failed after cancellation", t);
+            }
+        }
+
+        private void terminate() {
+            done = true;
+            ResultSetSpliterator<T> current = rows;
+            if (current != null) current.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package repository;
+
+import databases.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+    Lazily maps an open ResultSet one row at a time. The borrowed connection, statement and result set stay
+    open until the rows are exhausted or the stream is closed, so callers should use try-with-resources.
+ */
+public class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultSetSpliterator.class);
+
+    private final SQLConnection sqlConnection;
+    private final Connection conn;
+    private final boolean restoreAutoCommit;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final RowMapper<T> mapper;
+    private PreparedStatement stmt;
+    private ResultSet rs;
+
+    private ResultSetSpliterator(SQLConnection sqlConnection, Connection conn, boolean restoreAutoCommit, RowMapper<T> mapper) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.sqlConnection = sqlConnection;
+        this.conn = conn;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.mapper = mapper;
+    }
+
+    /*
+        Executes the query with the configured fetch size. On PostgreSQL auto-commit is switched off for the
+        lifetime of the stream, since the driver only uses a server-side cursor inside a transaction.
+        A non-pooled connection is shared with every other caller, whose commits would end that transaction and
+        invalidate the cursor (and MySQL row streaming would block the connection), so there the driver's
+        default fetch size is used: the rows are read without a cursor and only mapped lazily.
+     */
+    public static <T> ResultSetSpliterator<T> open(SQLConnection sqlConnection, String sql, QueryPlan.ParameterBinder binder,
+                                                   Object[] args, RowMapper<T> mapper) throws SQLException {
+        Database database = sqlConnection.getDatabase();
+        boolean shared = !sqlConnection.isPooled();
+        Connection conn = sqlConnection.acquire();
+        boolean restoreAutoCommit = false;
+        try {
+            if (!shared && database.requiresTransactionForCursor() && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+        } catch (SQLException e) {
+            sqlConnection.release(conn);
+            throw e;
+        }
+
+        ResultSetSpliterator<T> spliterator = new ResultSetSpliterator<>(sqlConnection, conn, restoreAutoCommit, mapper);
+        try {
+            spliterator.stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            spliterator.stmt.setFetchSize(shared ? 0 : database.getStreamingFetchSize(sqlConnection.getFetchSize()));
+            binder.bind(spliterator.stmt, args);
+            spliterator.rs = spliterator.stmt.executeQuery();
+            if (sqlConnection.getLogsEnabled()) log.info(shared ? "{} [buffered]" : "{} [streaming]", sql);
+            return spliterator;
+        } catch (SQLException | RuntimeException e) {
+            spliterator.close();
+            throw e;
+        }
+    }
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(this, false).onClose(this::close);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed.get()) return false;
+        try {
+            if (!rs.next()) {
+                close();
+                return false;
+            }
+            action.accept(mapper.mapRow(rs));
+            return true;
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /*
+        Cancels the running statement, e.g. when a consumer stops reading before the end of the result
+     */
+    public void cancel() {
+        if (closed.get() || stmt == null) return;
+        try {
+            stmt.cancel();
+        } catch (SQLException e) {
+            log.warn("Failed to cancel streaming statement", e);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (restoreAutoCommit) conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Failed to close streaming query", e);
+        } finally {
+            sqlConnection.release(conn);
+        }
+    }
+}
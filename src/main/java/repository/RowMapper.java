@@ -0,0 +1,26 @@
+package repository;
+
+import databases.Database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+    Turns the current row of a ResultSet into an entity. One mapper is created per entity class and reused for every row.
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+    T mapRow(ResultSet rs) throws SQLException;
+
+    /*
+        Mapper built from MethodHandles, falling back to plain reflection if the class cannot be accessed that way
+     */
+    static EntityRowMapper forEntity(EntityMetadata metadata, Database database) {
+        try {
+            return new MethodHandleRowMapper(metadata, database);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return new ReflectionRowMapper(metadata, database);
+        }
+    }
+}
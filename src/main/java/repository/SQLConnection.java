@@ -1,25 +1,64 @@
 package repository;
 
+import annotations.Cacheable;
 import databases.Database;
 import databases.DatabaseType;
 
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SQLConnection {
 
 
     public SQLConnection(String username, String password, String dbName, DatabaseType dbType) {
+        this(username, password, dbName, dbType, null);
+    }
+
+    /*
+        Pooled mode: every repository operation borrows its own connection from a ConnectionPool
+        instead of sharing a single one. Pass null for the classic single-connection mode.
+     */
+    public SQLConnection(String username, String password, String dbName, DatabaseType dbType, PoolConfig poolConfig) {
+        this(null, username, password, dbName, dbType, poolConfig);
+    }
+
+    /*
+        Connection to a full JDBC URL instead of the dialect's default host, e.g. for a replica or an
+        embedded database
+     */
+    public static SQLConnection fromUrl(String url, String username, String password, DatabaseType dbType, PoolConfig poolConfig) {
+        return new SQLConnection(url, username, password, url, dbType, poolConfig);
+    }
+
+    private SQLConnection(String url, String username, String password, String dbName, DatabaseType dbType, PoolConfig poolConfig) {
         this.username = username;
         this.password = password;
         this.name = dbName;
         this.database = dbType.createDialect();
 
-        String url = this.database.getUrl() + dbName;
+        String jdbcUrl = url != null ? url : this.database.getUrl() + dbName;
 
         try {
-            this.conn = DriverManager.getConnection(url, username, password);
+            if (poolConfig != null) {
+                this.pool = new ConnectionPool(() -> DriverManager.getConnection(jdbcUrl, username, password), poolConfig);
+            } else {
+                this.conn = DriverManager.getConnection(jdbcUrl, username, password);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -37,10 +76,434 @@ public class SQLConnection {
 
     private Connection conn;
 
+    private ConnectionPool pool;
+
+    private volatile StatementCache statementCache;
+
+    private int batchSize = 500;
+
+    private boolean multiRowInsert;
+
+    private int fetchSize = 1000;
+
+    private final Map<Class<?>, EntityCache> entityCaches = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, FindByIdCoalescer> coalescers = new ConcurrentHashMap<>();
+
+    private volatile long coalescingWindowMicros;
+
+    private volatile int coalescingMaxBatchSize;
+
+    private volatile Executor asyncExecutor;
+
+    private volatile WriteBehindQueue writeBehind;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final CopyOnWriteArrayList<SQLConnection> replicas = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private volatile ReplicaRouting replicaRouting = ReplicaRouting.ROUND_ROBIN;
+
+    private volatile long readYourWritesNanos;
+
+    private final ThreadLocal<AtomicLong> lastWrite = ThreadLocal.withInitial(AtomicLong::new);
+
+    private ExecutorService defaultAsyncExecutor;
+
+    /*
+        The shared connection of a non-pooled SQLConnection. Pooled connections are borrowed with acquire()/release().
+     */
     public Connection getConn() {
+        if (pool != null) throw new IllegalStateException("SQLConnection is pooled, use acquire() and release()");
         return conn;
     }
 
+    /*
+        Borrows a connection for one operation or transaction. Must be handed back with release().
+     */
+    public Connection acquire() throws SQLException {
+        Connection connection;
+        if (pool != null) {
+            connection = pool.acquire();
+        } else {
+            if (conn == null) throw new SQLException("No connection to " + name);
+            connection = conn;
+        }
+        inFlight.incrementAndGet();
+        return connection;
+    }
+
+    public void release(Connection connection) {
+        if (connection == null) return;
+        inFlight.decrementAndGet();
+        if (pool != null) pool.release(connection);
+    }
+
+    /*
+        Connections currently borrowed with acquire()
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /*
+        Sends reads of repositories outside a session (findById, findBy*, findAll, existsBy*, countBy*, streams
+        and SELECT custom queries) to the replica, which must use the same dialect. Writes, sessions and
+        transactions stay on this connection.
+     */
+    public void addReplica(SQLConnection replica) {
+        if (replica == this) throw new IllegalArgumentException("A connection cannot be its own replica");
+        if (replica.getDatabase().getClass() != database.getClass()) {
+            throw new IllegalArgumentException("Replica dialect " + replica.getDatabase().getClass().getSimpleName()
+                    + " differs from " + database.getClass().getSimpleName());
+        }
+        replicas.addIfAbsent(replica);
+    }
+
+    public void removeReplica(SQLConnection replica) {
+        replicas.remove(replica);
+    }
+
+    public List<SQLConnection> getReplicas() {
+        return Collections.unmodifiableList(replicas);
+    }
+
+    public void setReplicaRouting(ReplicaRouting replicaRouting) {
+        if (replicaRouting == null) throw new IllegalArgumentException("Replica routing must not be null");
+        this.replicaRouting = replicaRouting;
+    }
+
+    public ReplicaRouting getReplicaRouting() {
+        return replicaRouting;
+    }
+
+    /*
+        After a thread writes, its reads go to this connection for windowMillis, so it sees its own writes
+        even while the replicas lag behind
+     */
+    public void enableReadYourWrites(long windowMillis) {
+        if (windowMillis <= 0) throw new IllegalArgumentException("Read-your-writes window must be > 0");
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    public void disableReadYourWrites() {
+        this.readYourWritesNanos = 0;
+    }
+
+    /*
+        Connection that should serve a read from the calling thread: a replica chosen by the routing policy,
+        or this connection if there are none or the thread has written within the read-your-writes window
+     */
+    SQLConnection routeRead() {
+        int count = replicas.size();
+        if (count == 0) return this;
+        if (readYourWritesNanos > 0) {
+            long written = lastWrite.get().get();
+            if (written != 0 && System.nanoTime() - written < readYourWritesNanos) return this;
+        }
+        try {
+            int start = Math.floorMod(nextReplica.getAndIncrement(), count);
+            if (replicaRouting == ReplicaRouting.ROUND_ROBIN) return replicas.get(start);
+            SQLConnection best = null;
+            for (int i = 0; i < count; i++) {
+                SQLConnection candidate = replicas.get((start + i) % count);
+                if (best == null || candidate.getInFlight() < best.getInFlight()) best = candidate;
+            }
+            return best;
+        } catch (IndexOutOfBoundsException e) {
+            /* a replica was removed meanwhile */
+            return routeRead();
+        }
+    }
+
+    /*
+        Records a write by the calling thread for read-your-writes routing
+     */
+    void markWrite() {
+        if (readYourWritesNanos > 0 && !replicas.isEmpty()) lastWrite.get().set(System.nanoTime());
+    }
+
+    /*
+        The calling thread's write record, for work it hands to another thread, see withWriteRecord
+     */
+    AtomicLong writeRecord() {
+        return lastWrite.get();
+    }
+
+    /*
+        Runs the task with its writes recorded for the thread owning the record, so that a thread dispatching
+        async work reads its own writes afterwards
+     */
+    <T> T withWriteRecord(AtomicLong record, Callable<T> task) throws Exception {
+        AtomicLong own = lastWrite.get();
+        lastWrite.set(record);
+        try {
+            return task.call();
+        } finally {
+            lastWrite.set(own);
+        }
+    }
+
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /*
+        Keeps up to maxStatementsPerConnection prepared statements per physical connection and reuses them
+        for identical SQL text. Hit/miss counters are available through getStatementCache().
+     */
+    public void enableStatementCache(int maxStatementsPerConnection) {
+        StatementCache cache = new StatementCache(maxStatementsPerConnection);
+        if (pool != null) pool.setDiscardListener(cache::evict);
+        StatementCache previous = this.statementCache;
+        this.statementCache = cache;
+        if (previous != null) previous.clear();
+    }
+
+    public void disableStatementCache() {
+        StatementCache previous = this.statementCache;
+        this.statementCache = null;
+        if (pool != null) pool.setDiscardListener(null);
+        if (previous != null) previous.clear();
+    }
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /*
+        Prepares a statement on a borrowed connection, reusing a cached one when the cache is enabled.
+        Must be handed back with closeStatement() instead of being closed directly.
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        StatementCache cache = statementCache;
+        return cache != null ? cache.take(connection, sql) : connection.prepareStatement(sql);
+    }
+
+    public void closeStatement(Connection connection, String sql, PreparedStatement stmt) {
+        if (stmt == null) return;
+        StatementCache cache = statementCache;
+        if (cache != null) {
+            cache.giveBack(connection, sql, stmt);
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+        Number of rows sent per executeBatch (or per multi-row INSERT) by saveAll
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be >= 1");
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /*
+        Makes saveAll send dialect-specific multi-row INSERT statements instead of JDBC batches
+     */
+    public void enableMultiRowInsert() {
+        this.multiRowInsert = true;
+    }
+
+    public void disableMultiRowInsert() {
+        this.multiRowInsert = false;
+    }
+
+    public boolean isMultiRowInsert() {
+        return multiRowInsert;
+    }
+
+    /*
+        Rows fetched per round trip by streaming queries
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 1) throw new IllegalArgumentException("Fetch size must be >= 1");
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /*
+        Caches entities of the class loaded by findById for up to ttlMillis (0 keeps them until evicted),
+        holding at most maxEntries. Entities annotated with @Cacheable get a cache when their repository is created.
+     */
+    public EntityCache enableEntityCache(Class<?> entityClass, int maxEntries, long ttlMillis) {
+        EntityCache cache = new EntityCache(EntityMetadata.of(entityClass), maxEntries, ttlMillis);
+        EntityCache previous = entityCaches.put(entityClass, cache);
+        if (previous != null) previous.clear();
+        return cache;
+    }
+
+    public void disableEntityCache(Class<?> entityClass) {
+        EntityCache previous = entityCaches.remove(entityClass);
+        if (previous != null) previous.clear();
+    }
+
+    /*
+        Cache of the entity class, or null if it is not cached
+     */
+    public EntityCache getEntityCache(Class<?> entityClass) {
+        return entityCaches.get(entityClass);
+    }
+
+    /*
+        Drops every cached entity, used after writes the ORM cannot attribute to single ids
+     */
+    public void clearEntityCaches() {
+        for (EntityCache cache : entityCaches.values()) cache.clear();
+    }
+
+    EntityCache registerEntityCache(Class<?> entityClass) {
+        Cacheable cacheable = entityClass.getAnnotation(Cacheable.class);
+        if (cacheable == null) return entityCaches.get(entityClass);
+        return entityCaches.computeIfAbsent(entityClass, c -> new EntityCache(EntityMetadata.of(c),
+                cacheable.maxEntries(), TimeUnit.SECONDS.toMillis(cacheable.ttlSeconds())));
+    }
+
+    /*
+        Merges findById calls that reach the same repository from different threads within windowMicros, or until
+        maxBatchSize ids are waiting, into a single id-list query. See FindByIdCoalescer.
+     */
+    public void enableFindByIdCoalescing(long windowMicros, int maxBatchSize) {
+        if (windowMicros < 0) throw new IllegalArgumentException("Coalescing window must be >= 0");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Coalescing batch size must be >= 1");
+        this.coalescingWindowMicros = windowMicros;
+        this.coalescingMaxBatchSize = maxBatchSize;
+        coalescers.clear();
+    }
+
+    public void disableFindByIdCoalescing() {
+        this.coalescingMaxBatchSize = 0;
+        coalescers.clear();
+    }
+
+    public boolean isFindByIdCoalescing() {
+        return coalescingMaxBatchSize > 0;
+    }
+
+    /*
+        Coalescer of the entity class, or null if coalescing is disabled
+     */
+    public FindByIdCoalescer getFindByIdCoalescer(Class<?> entityClass) {
+        return coalescers.get(entityClass);
+    }
+
+    FindByIdCoalescer coalescerFor(EntityMetadata metadata) {
+        if (coalescingMaxBatchSize == 0) return null;
+        return coalescers.computeIfAbsent(metadata.getEntityClass(),
+                c -> new FindByIdCoalescer(metadata, this, coalescingWindowMicros, coalescingMaxBatchSize));
+    }
+
+    /*
+        Executor for repository methods returning CompletableFuture. Callers own an executor they set here;
+        pass null to go back to the default.
+     */
+    public void setAsyncExecutor(Executor executor) {
+        ExecutorService previous;
+        synchronized (this) {
+            previous = defaultAsyncExecutor;
+            defaultAsyncExecutor = null;
+            asyncExecutor = executor;
+        }
+        if (previous != null) previous.shutdown();
+    }
+
+    /*
+        The executor set with setAsyncExecutor, or a default created on first use: one virtual thread per call
+        where the runtime has them (Java 21+), since they park rather than pin a carrier while waiting for a pooled
+        connection or on JDBC I/O. Older runtimes get one platform thread per pooled connection, so callers queue
+        for a thread instead of for a connection. Without a pool the shared connection is used by a single thread.
+     */
+    public Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        if (executor != null) return executor;
+        synchronized (this) {
+            if (asyncExecutor == null) {
+                defaultAsyncExecutor = createDefaultAsyncExecutor();
+                asyncExecutor = defaultAsyncExecutor;
+            }
+            return asyncExecutor;
+        }
+    }
+
+    private ExecutorService createDefaultAsyncExecutor() {
+        if (pool != null) {
+            try {
+                Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) virtual.invoke(null);
+            } catch (ReflectiveOperationException ignored) {
+                /* pre-21 runtime */
+            }
+        }
+        int threads = pool == null ? 1 : pool.getMaxSize();
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "repository-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+        Routes save and delete by id of repositories outside a session through a group-commit queue, see
+        WriteBehindQueue. Blocking calls wait until their write has committed; saveAsync and deleteAsync
+        return the future instead.
+     */
+    public void enableWriteBehind(int maxBatchSize, long windowMillis) {
+        WriteBehindQueue previous = writeBehind;
+        writeBehind = new WriteBehindQueue(this, maxBatchSize, windowMillis);
+        if (previous != null) previous.close();
+    }
+
+    /*
+        Flushes the queued writes and returns to writing on the calling thread
+     */
+    public void disableWriteBehind() {
+        WriteBehindQueue previous = writeBehind;
+        writeBehind = null;
+        if (previous != null) previous.close();
+    }
+
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehind;
+    }
+
+    /*
+        Opens a unit of work with its own identity map, see Session
+     */
+    public Session openSession() {
+        return new Session(this);
+    }
+
+    public void close() {
+        disableWriteBehind();
+        setAsyncExecutor(null);
+        disableStatementCache();
+        clearEntityCaches();
+        try {
+            if (pool != null) pool.close();
+            if (conn != null) conn.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private String username;
 
     private boolean logsEnabled;
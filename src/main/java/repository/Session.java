@@ -0,0 +1,265 @@
+package repository;
+
+import validation.ConstraintValidator;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/*
+    Unit of work over a SQLConnection. Repositories obtained from a session share an identity map, so an id is
+    loaded at most once and always maps to the same instance, and their save/delete calls are queued instead of
+    executed. commit() flushes the queue as JDBC batches in a single transaction: deletes first, children before
+    parents (reverse order of first use), then inserts, parents before children (order of first use), then upserts,
+    then updates of the columns changed since load.
+    Queries other than findById/existsById run against the database and do not see queued writes before commit.
+    @CustomQuery statements run immediately. A session is meant for one thread, like a request.
+ */
+public class Session implements AutoCloseable {
+
+    private final SQLConnection sqlConnection;
+    private final BatchWriter batchWriter;
+    private final Map<Class<?>, Object> repositories = new HashMap<>();
+    private final Map<Class<?>, Map<Object, Object>> identityMap = new HashMap<>();
+    private final Map<Class<?>, PendingWrites> pending = new LinkedHashMap<>();
+    private boolean open = true;
+
+    public Session(SQLConnection sqlConnection) {
+        this.sqlConnection = sqlConnection;
+        this.batchWriter = new BatchWriter(sqlConnection);
+    }
+
+    /*
+        Repository bound to this session. Repeated calls return the same instance.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R getRepository(Class<R> repositoryInterface) {
+        requireOpen();
+        return (R) repositories.computeIfAbsent(repositoryInterface, type -> Proxy.newProxyInstance(
+                type.getClassLoader(),
+                new Class[]{type},
+                new RepositoryHandler(sqlConnection, type, this)));
+    }
+
+    /*
+        Writes every queued insert and delete in one transaction. The identity map is kept, so entities
+        stay attached to the session afterwards.
+     */
+    public void commit() {
+        requireOpen();
+        if (pending.isEmpty()) return;
+
+        List<PendingWrites> order = new ArrayList<>(pending.values());
+        try {
+            batchWriter.inTransaction(conn -> {
+                for (int i = order.size() - 1; i >= 0; i--) order.get(i).flushDeletes(conn);
+                for (PendingWrites writes : order) writes.flushInserts(conn);
+                for (PendingWrites writes : order) writes.flushUpserts(conn);
+                for (PendingWrites writes : order) writes.flushUpdates(conn);
+                return null;
+            });
+        } finally {
+            for (PendingWrites writes : order) writes.invalidateCache();
+        }
+        for (PendingWrites writes : order) writes.refreshSnapshots();
+        pending.clear();
+    }
+
+    /*
+        Discards queued writes and detaches every entity
+     */
+    public void rollback() {
+        pending.clear();
+        identityMap.clear();
+    }
+
+    public void clear() {
+        requireOpen();
+        rollback();
+    }
+
+    /*
+        Closes the session, discarding writes that were not committed
+     */
+    @Override
+    public void close() {
+        if (!open) return;
+        rollback();
+        open = false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getPendingWrites() {
+        int count = 0;
+        for (PendingWrites writes : pending.values()) count += writes.inserts.size() + writes.upserts.size() + writes.updates.size() + writes.deletes.size();
+        return count;
+    }
+
+    public boolean contains(Object entity) {
+        EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+        return metadata.hasId() && entitiesOf(metadata).get(metadata.idValueOf(entity)) == entity;
+    }
+
+    int queueSave(Object entity) {
+        requireOpen();
+        try {
+            ConstraintValidator.validateConstraints(entity.getClass(), entity);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+        Object id = metadata.idValueOf(entity);
+        PendingWrites writes = pendingFor(metadata);
+        if (writes.deletes.contains(id)) {
+            /* saved again after a queued delete: commit runs the delete, then inserts the entity afresh */
+            writes.inserts.put(id, entity);
+        } else if (metadata.snapshotOf(entity) != null && !writes.inserts.containsKey(id)) {
+            writes.updates.put(entity, Boolean.TRUE);
+        } else {
+            writes.inserts.put(id, entity);
+        }
+        entitiesOf(metadata).put(id, entity);
+        return 1;
+    }
+
+    int queueUpsert(Object entity) {
+        requireOpen();
+        EntityMetadata metadata = EntityMetadata.of(entity.getClass());
+        Object id = metadata.idValueOf(entity);
+        PendingWrites writes = pendingFor(metadata);
+        if (writes.inserts.remove(id) == null) writes.upserts.put(id, entity);
+        else writes.inserts.put(id, entity);
+        writes.updates.remove(entity);
+        entitiesOf(metadata).put(id, entity);
+        return 1;
+    }
+
+    int queueDelete(EntityMetadata metadata, Object id) {
+        requireOpen();
+        PendingWrites writes = pendingFor(metadata);
+        writes.upserts.remove(id);
+        if (writes.inserts.remove(id) == null) writes.deletes.add(id);
+        Object managed = entitiesOf(metadata).remove(id);
+        if (managed != null) {
+            writes.updates.remove(managed);
+            metadata.resetSnapshot(managed, null);
+        }
+        return 1;
+    }
+
+    /*
+        Entity from the identity map, or loaded with loader and attached. Ids deleted in this session are absent.
+     */
+    Object find(EntityMetadata metadata, Object id, Supplier<Object> loader) {
+        requireOpen();
+        Object managed = entitiesOf(metadata).get(id);
+        if (managed != null) return managed;
+        if (isDeleted(metadata, id)) return null;
+        Object loaded = loader.get();
+        return loaded == null ? null : attach(metadata, loaded);
+    }
+
+    /*
+        Instance attached for the id, or null if the session has not seen it
+     */
+    Object lookup(EntityMetadata metadata, Object id) {
+        return entitiesOf(metadata).get(id);
+    }
+
+    /*
+        TRUE or FALSE when the session already knows the answer, null when the database has to be asked
+     */
+    Boolean exists(EntityMetadata metadata, Object id) {
+        if (entitiesOf(metadata).containsKey(id)) return Boolean.TRUE;
+        if (isDeleted(metadata, id)) return Boolean.FALSE;
+        return null;
+    }
+
+    /*
+        Replaces a freshly mapped row by the instance already attached for its id, if any
+     */
+    Object attach(EntityMetadata metadata, Object entity) {
+        if (entity == null || !metadata.hasId()) return entity;
+        Object id = metadata.idValueOf(entity);
+        if (id == null || isDeleted(metadata, id)) return entity;
+        Object managed = entitiesOf(metadata).putIfAbsent(id, entity);
+        return managed != null ? managed : entity;
+    }
+
+    private boolean isDeleted(EntityMetadata metadata, Object id) {
+        PendingWrites writes = pending.get(metadata.getEntityClass());
+        return writes != null && writes.deletes.contains(id) && !writes.inserts.containsKey(id)
+                && !writes.upserts.containsKey(id);
+    }
+
+    private Map<Object, Object> entitiesOf(EntityMetadata metadata) {
+        return identityMap.computeIfAbsent(metadata.getEntityClass(), c -> new HashMap<>());
+    }
+
+    private PendingWrites pendingFor(EntityMetadata metadata) {
+        return pending.computeIfAbsent(metadata.getEntityClass(), c -> new PendingWrites(metadata));
+    }
+
+    private void requireOpen() {
+        if (!open) throw new IllegalStateException("Session is closed");
+    }
+
+    private class PendingWrites {
+        private final EntityMetadata metadata;
+        private final Map<Object, Object> inserts = new LinkedHashMap<>();
+        private final Map<Object, Object> upserts = new LinkedHashMap<>();
+        private final Map<Object, Boolean> updates = new IdentityHashMap<>();
+        private final Set<Object> deletes = new LinkedHashSet<>();
+
+        private PendingWrites(EntityMetadata metadata) {
+            this.metadata = metadata;
+        }
+
+        private void flushDeletes(Connection conn) throws SQLException {
+            if (!deletes.isEmpty()) batchWriter.deleteByIds(conn, metadata, new ArrayList<>(deletes));
+        }
+
+        private void flushInserts(Connection conn) throws SQLException {
+            if (!inserts.isEmpty()) batchWriter.insert(conn, metadata, new ArrayList<>(inserts.values()));
+        }
+
+        private void flushUpserts(Connection conn) throws SQLException {
+            if (!upserts.isEmpty()) batchWriter.upsert(conn, metadata, new ArrayList<>(upserts.values()));
+        }
+
+        private void flushUpdates(Connection conn) throws SQLException {
+            if (!updates.isEmpty()) batchWriter.update(conn, metadata, new ArrayList<>(updates.keySet()));
+        }
+
+        private void refreshSnapshots() {
+            for (Object entity : inserts.values()) metadata.snapshot(entity);
+            for (Object entity : upserts.values()) metadata.snapshot(entity);
+            for (Object entity : updates.keySet()) metadata.snapshot(entity);
+        }
+
+        private void invalidateCache() {
+            EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+            if (cache == null) return;
+            for (Object id : deletes) cache.invalidate(id);
+            for (Object id : inserts.keySet()) cache.invalidate(id);
+            for (Object id : upserts.keySet()) cache.invalidate(id);
+            for (Object entity : updates.keySet()) {
+                Object[] snapshot = metadata.snapshotOf(entity);
+                if (snapshot != null) cache.invalidate(snapshot[metadata.getIdIndex()]);
+                cache.invalidate(metadata.idValueOf(entity));
+            }
+        }
+    }
+}
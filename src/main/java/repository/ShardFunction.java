@@ -0,0 +1,18 @@
+package repository;
+
+/*
+    Maps an @Id value to the index of the shard holding its row, see RepositoryFactory.createShardedRepository.
+    The function must be stable: the same id always maps to the same shard for a given shard count.
+ */
+@FunctionalInterface
+public interface ShardFunction {
+
+    int shardOf(Object id, int shardCount);
+
+    /*
+        Spreads ids by their hashCode, which is stable across JVMs for strings, numbers, UUIDs and enums' names
+     */
+    static ShardFunction hashing() {
+        return (id, shardCount) -> Math.floorMod(id instanceof Enum ? ((Enum<?>) id).name().hashCode() : id.hashCode(), shardCount);
+    }
+}
@@ -0,0 +1,680 @@
+package repository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+    Repository over tables hash-partitioned across several databases. Methods addressing rows by id go to the
+    shard the ShardFunction assigns the id to; saveAll and the id-list methods split their input by shard and run
+    the parts concurrently. Every other method is scattered to all shards in parallel and the results are
+    gathered by return type: counts are summed, exists is true if any shard says so, lists and streams are
+    concatenated (parallel streams stay parallel), or merged shard by shard for derived OrderBy methods and Sort
+    arguments, since each shard already returns its rows in order. Top/First limits apply again after the merge.
+    Async methods gather the shards' futures into one.
+    Offset pages ask every shard for its first offset + size rows and merge them before cutting the page; keyset
+    pages ask every shard for its next page. Page totals are summed. Publishers are concatenated shard by shard,
+    so ordered or limited publisher methods fail. @CustomQuery ORDER BY is not merged.
+ */
+public class ShardedRepositoryHandler implements InvocationHandler {
+
+    private static final Set<String> SAVES = Set.of("save", "saveAsync", "upsert");
+    private static final Set<String> BY_ID = Set.of("findById", "delete", "deleteAsync", "existsById");
+    private static final Set<String> BY_IDS = Set.of("findAllById", "deleteAllById", "existsAllById");
+    private static final Set<String> SAVE_ALLS = Set.of("saveAll", "upsertAll");
+
+    /*
+        Runs the fan-out of blocking calls. Its daemon threads are created on demand and exit after a minute idle.
+     */
+    private static final ExecutorService SCATTER_EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-scatter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Class<?> repositoryInterface;
+    private final List<SQLConnection> shards;
+    private final List<Object> repositories;
+    private final ShardFunction shardFunction;
+    private final EntityMetadata metadata;
+    private final Map<Method, DerivedQuery> derived = new ConcurrentHashMap<>();
+
+    public ShardedRepositoryHandler(Class<?> repositoryInterface, List<SQLConnection> shards, List<?> repositories,
+                                    ShardFunction shardFunction) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("Sharded repository needs at least one shard");
+        this.repositoryInterface = repositoryInterface;
+        this.shards = List.copyOf(shards);
+        this.repositories = List.copyOf(repositories);
+        this.shardFunction = shardFunction;
+        this.metadata = EntityMetadata.of(ReflectionUtils.getEntityFromClassInterface(repositoryInterface));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.isDefault()) return InvocationHandler.invokeDefault(proxy, method, args);
+        if (method.getDeclaringClass() == Object.class) return handleObjectMethod(proxy, method, args);
+
+        String name = method.getName();
+        int arity = args == null ? 0 : args.length;
+        if (arity == 1 && SAVES.contains(name)) return call(shardOf(metadata.idValueOf(args[0])), method, args);
+        if (arity == 1 && BY_ID.contains(name)) return call(shardOf(args[0]), method, args);
+        if (arity == 1 && BY_IDS.contains(name)) return handleByIds(method, (Collection<?>) args[0]);
+        if (arity == 1 && SAVE_ALLS.contains(name)) return handleSaveAll(method, (List<?>) args[0]);
+        return scatter(method, args);
+    }
+
+    public List<SQLConnection> getShards() {
+        return shards;
+    }
+
+    public int shardOf(Object id) {
+        if (id == null) throw new IllegalArgumentException("Cannot route a null id to a shard");
+        int shard = shardFunction.shardOf(id, shards.size());
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalArgumentException("Shard function returned " + shard + " for " + shards.size() + " shards");
+        }
+        return shard;
+    }
+
+    private Object handleObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals": return proxy == args[0];
+            case "hashCode": return System.identityHashCode(proxy);
+            default: return repositoryInterface.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+    }
+
+    private Object handleByIds(Method method, Collection<?> ids) {
+        Map<Integer, List<Object>> parts = new TreeMap<>();
+        for (Object id : ids) parts.computeIfAbsent(shardOf(id), k -> new ArrayList<>()).add(id);
+
+        switch (method.getName()) {
+            case "findAllById":
+                return complete(method, parallel(method, parts), results -> {
+                    Map<Object, Object> found = new HashMap<>();
+                    for (Object result : results) found.putAll((Map<?, ?>) result);
+                    Map<Object, Object> ordered = new LinkedHashMap<>();
+                    for (Object id : ids) {
+                        Object entity = found.get(id);
+                        if (entity != null) ordered.put(id, entity);
+                    }
+                    return ordered;
+                });
+            case "deleteAllById":
+                return complete(method, parallel(method, parts), results -> {
+                    int deleted = 0;
+                    for (Object result : results) deleted += (Integer) result;
+                    return deleted;
+                });
+            default:
+                return complete(method, parallel(method, parts), results -> {
+                    for (Object result : results) {
+                        if (!(Boolean) result) return false;
+                    }
+                    return true;
+                });
+        }
+    }
+
+    /*
+        Batch counts of each shard in shard order
+     */
+    private Object handleSaveAll(Method method, List<?> entities) {
+        Map<Integer, List<Object>> parts = new TreeMap<>();
+        for (Object entity : entities) {
+            parts.computeIfAbsent(shardOf(metadata.idValueOf(entity)), k -> new ArrayList<>()).add(entity);
+        }
+        return complete(method, parallel(method, parts), ShardedRepositoryHandler::concatCounts);
+    }
+
+    /*
+        Calls the method on each shard with its part of the input, in shard order
+     */
+    private CompletableFuture<List<Object>> parallel(Method method, Map<Integer, List<Object>> parts) {
+        int[] targets = new int[parts.size()];
+        Object[][] arguments = new Object[parts.size()][];
+        int i = 0;
+        for (Map.Entry<Integer, List<Object>> part : parts.entrySet()) {
+            targets[i] = part.getKey();
+            arguments[i++] = new Object[]{part.getValue()};
+        }
+        return fanOut(method, targets, arguments);
+    }
+
+    private Object scatter(Method method, Object[] args) {
+        Class<?> type = resultClass(method);
+        if (type == Flow.Publisher.class && (orderOf(method, args) != null || limitOf(method) > 0)) {
+            throw new UnsupportedOperationException("Ordered or limited publisher results cannot be merged across shards: "
+                    + method.getName());
+        }
+        int pageIndex = pageableIndex(args);
+        Pageable pageable = pageIndex < 0 ? null : (Pageable) args[pageIndex];
+        Object[] shardArgs = args;
+        if (pageable != null && !pageable.isKeyset()) {
+            shardArgs = args.clone();
+            shardArgs[pageIndex] = leadingRows(pageable);
+        }
+
+        int[] targets = new int[shards.size()];
+        Object[][] arguments = new Object[shards.size()][];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            targets[shard] = shard;
+            arguments[shard] = shardArgs;
+        }
+        return complete(method, fanOut(method, targets, arguments), results -> {
+            if (pageable != null) return gatherPage(method, type, pageable, results);
+            if (type == Flow.Publisher.class) return new ConcatPublisher(results);
+            return gather(method, type, args, results);
+        });
+    }
+
+    private static int pageableIndex(Object[] args) {
+        if (args == null) return -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Pageable) return i;
+        }
+        return -1;
+    }
+
+    /*
+        First page of a shard holding every row the merged page could need: the rows before it and the page itself
+     */
+    private static Pageable leadingRows(Pageable pageable) {
+        long rows = pageable.getOffset() + pageable.getSize();
+        if (rows > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Page too deep to merge across shards: " + pageable);
+        }
+        return Pageable.of(0, (int) rows, pageable.getSort());
+    }
+
+    /*
+        Calls the method on the target shards concurrently. Async methods already run on their shard's executor and
+        are called directly; otherwise all but the last call go to the scatter executor and the last runs on the
+        calling thread, so a shard's own single-threaded async executor is never tied up by the fan-out. Writes
+        on scatter threads count as the caller's for read-your-writes.
+        The result fails with the first failure, with the others suppressed, after closing any streams returned.
+     */
+    private CompletableFuture<List<Object>> fanOut(Method method, int[] targets, Object[][] arguments) {
+        boolean async = isAsync(method);
+        List<CompletableFuture<?>> futures = new ArrayList<>(targets.length);
+        for (int i = 0; i < targets.length; i++) {
+            int shard = targets[i];
+            Object[] args = arguments[i];
+            if (async) {
+                futures.add(((CompletionStage<?>) call(shard, method, args)).toCompletableFuture());
+            } else if (i < targets.length - 1) {
+                SQLConnection connection = shards.get(shard);
+                AtomicLong writes = connection.writeRecord();
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return connection.withWriteRecord(writes, () -> call(shard, method, args));
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, SCATTER_EXECUTOR));
+            } else {
+                try {
+                    futures.add(CompletableFuture.completedFuture(call(shard, method, args)));
+                } catch (RuntimeException e) {
+                    futures.add(CompletableFuture.failedFuture(e));
+                }
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((v, ignored) -> {
+            List<Object> results = new ArrayList<>(futures.size());
+            RuntimeException failure = null;
+            for (CompletableFuture<?> future : futures) {
+                try {
+                    results.add(join(future));
+                } catch (RuntimeException e) {
+                    if (failure == null) failure = e;
+                    else failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) {
+                for (Object result : results) {
+                    if (result instanceof Stream) ((Stream<?>) result).close();
+                }
+                throw failure;
+            }
+            return results;
+        });
+    }
+
+    /*
+        Gathered result: a future of it for async methods, else the value once every shard has answered
+     */
+    private static Object complete(Method method, CompletableFuture<List<Object>> results, Function<List<Object>, Object> gather) {
+        if (isAsync(method)) return results.thenApply(gather);
+        return gather.apply(join(results));
+    }
+
+    private Object gather(Method method, Class<?> type, Object[] args, List<Object> results) {
+        if (type == void.class || type == Void.class) return null;
+        if (type == boolean.class || type == Boolean.class) {
+            for (Object result : results) {
+                if (Boolean.TRUE.equals(result)) return true;
+            }
+            return false;
+        }
+        if (type == long.class || type == Long.class) {
+            long sum = 0;
+            for (Object result : results) sum += (Long) result;
+            return sum;
+        }
+        if (type == int.class || type == Integer.class) {
+            int sum = 0;
+            for (Object result : results) sum += (Integer) result;
+            return sum;
+        }
+        if (type == int[].class) return concatCounts(results);
+
+        Comparator<Object> order = orderOf(method, args);
+        int limit = limitOf(method);
+        if (Stream.class.isAssignableFrom(type) && order == null) {
+            Stream<Object> stream = Stream.empty();
+            for (Object result : results) stream = Stream.concat(stream, castStream(result));
+            return limit > 0 ? stream.limit(limit) : stream;
+        }
+        if (Stream.class.isAssignableFrom(type)) {
+            List<Iterator<?>> iterators = new ArrayList<>(results.size());
+            for (Object result : results) iterators.add(((Stream<?>) result).iterator());
+            Iterator<Object> merged = new MergingIterator(iterators, order);
+            Stream<Object> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                    .onClose(() -> closeAll(results));
+            return limit > 0 ? stream.limit(limit) : stream;
+        }
+        if (Collection.class.isAssignableFrom(type)) {
+            List<Iterator<?>> iterators = new ArrayList<>(results.size());
+            int size = 0;
+            for (Object result : results) {
+                iterators.add(((Collection<?>) result).iterator());
+                size += ((Collection<?>) result).size();
+            }
+            Iterator<Object> merged = order == null ? concat(iterators) : new MergingIterator(iterators, order);
+            List<Object> rows = new ArrayList<>(limit > 0 ? Math.min(limit, size) : size);
+            while (merged.hasNext() && (limit <= 0 || rows.size() < limit)) rows.add(merged.next());
+            return rows;
+        }
+        if (Map.class.isAssignableFrom(type)) {
+            Map<Object, Object> merged = new LinkedHashMap<>();
+            for (Object result : results) merged.putAll((Map<?, ?>) result);
+            return merged;
+        }
+
+        Object first = null;
+        for (Object result : results) {
+            if (result == null) continue;
+            if (first == null || order != null && order.compare(result, first) < 0) first = result;
+            if (order == null) break;
+        }
+        return first;
+    }
+
+    /*
+        Page of the shards' rows merged in page order. A shard with more rows than it returned, or rows left over
+        after the cut, mean a next page exists.
+     */
+    private Object gatherPage(Method method, Class<?> type, Pageable pageable, List<Object> results) {
+        List<Iterator<?>> iterators = new ArrayList<>(results.size());
+        boolean more = false;
+        long total = 0;
+        for (Object result : results) {
+            if (result instanceof Slice) {
+                Slice<?> slice = (Slice<?>) result;
+                iterators.add(slice.getContent().iterator());
+                more |= slice.hasNext();
+                if (slice instanceof Page) total += ((Page<?>) slice).getTotalElements();
+            } else {
+                iterators.add(((List<?>) result).iterator());
+            }
+        }
+        Iterator<Object> merged = new MergingIterator(iterators, pageOrder(method, pageable));
+        long skip = pageable.isKeyset() ? 0 : pageable.getOffset();
+        for (long i = 0; i < skip && merged.hasNext(); i++) merged.next();
+        List<Object> rows = new ArrayList<>(pageable.getSize());
+        while (merged.hasNext() && rows.size() < pageable.getSize()) rows.add(merged.next());
+
+        PagedQuery.Shape shape = PagedQuery.shapeOf(type);
+        if (shape == PagedQuery.Shape.LIST) return rows;
+        Pageable next = null;
+        if ((more || merged.hasNext()) && !rows.isEmpty()) {
+            next = pageable.next(pageable.isKeyset() ? valueOf(rows.get(rows.size() - 1), metadata.getIdColumn()) : null);
+        }
+        return shape == PagedQuery.Shape.PAGE ? new Page<>(rows, pageable, next, total) : new Slice<>(rows, pageable, next);
+    }
+
+    private static int[] concatCounts(List<Object> results) {
+        int length = 0;
+        for (Object result : results) length += ((int[]) result).length;
+        int[] counts = new int[length];
+        int offset = 0;
+        for (Object result : results) {
+            int[] part = (int[]) result;
+            System.arraycopy(part, 0, counts, offset, part.length);
+            offset += part.length;
+        }
+        return counts;
+    }
+
+    private static void closeAll(List<Object> results) {
+        RuntimeException failure = null;
+        for (Object result : results) {
+            try {
+                ((Stream<?>) result).close();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private Object call(int shard, Method method, Object[] args) {
+        try {
+            return method.invoke(repositories.get(shard), args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /*
+        Row order the shards return, from a sorted Sort argument or else the derived OrderBy; null if unordered
+     */
+    private Comparator<Object> orderOf(Method method, Object[] args) {
+        Sort sort = null;
+        if (args != null && args.length > 0 && args[args.length - 1] instanceof Sort) {
+            Sort argument = (Sort) args[args.length - 1];
+            if (argument.isSorted()) sort = argument;
+        }
+        if (sort == null) sort = derivedSort(method);
+        return sort == null ? null : comparatorOf(sort);
+    }
+
+    /*
+        Row order of a page as PagedQuery sorts it: the keyset direction of the id, else the Pageable's sort,
+        the derived OrderBy or the id
+     */
+    private Comparator<Object> pageOrder(Method method, Pageable pageable) {
+        if (pageable.isKeyset()) return comparatorOf(Sort.by(pageable.getKeysetDirection(), metadata.getIdColumn()));
+        Sort sort = pageable.getSort().isSorted() ? pageable.getSort() : derivedSort(method);
+        return comparatorOf(sort != null ? sort : Sort.by(metadata.getIdColumn()));
+    }
+
+    private Sort derivedSort(Method method) {
+        DerivedQuery query = derivedOf(method);
+        return query != null && query.getSort() != null && query.getSort().isSorted() ? query.getSort() : null;
+    }
+
+    private Comparator<Object> comparatorOf(Sort sort) {
+        Comparator<Object> order = null;
+        for (Sort.Order o : sort.getOrders()) {
+            String property = o.getProperty();
+            Comparator<Object> byValue = o.getDirection() == Sort.Direction.ASC
+                    ? Comparator.nullsLast(ShardedRepositoryHandler::compareValues)
+                    : Comparator.nullsFirst(ShardedRepositoryHandler::compareValues).reversed();
+            Comparator<Object> next = Comparator.comparing(row -> valueOf(row, property), byValue);
+            order = order == null ? next : order.thenComparing(next);
+        }
+        return order;
+    }
+
+    private int limitOf(Method method) {
+        DerivedQuery query = derivedOf(method);
+        return query == null ? 0 : query.getLimit();
+    }
+
+    private DerivedQuery derivedOf(Method method) {
+        if (method.isAnnotationPresent(annotations.CustomQuery.class)) return null;
+        DerivedQuery query = derived.get(method);
+        if (query == null) {
+            query = DerivedQuery.parse(metadata, method.getName());
+            if (query != null) derived.put(method, query);
+        }
+        return query;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        return ((Comparable) a).compareTo(b);
+    }
+
+    /*
+        Sort property of an entity, or of a projection record/interface by accessor name ignoring case and underscores
+     */
+    private Object valueOf(Object row, String property) {
+        if (metadata.getEntityClass().isInstance(row)) {
+            int index = metadata.indexOfProperty(property);
+            if (index < 0) throw new IllegalArgumentException("No matching field found for sort property: " + property);
+            return metadata.valuesOf(row)[index];
+        }
+        String wanted = normalize(property);
+        for (Method accessor : row.getClass().getMethods()) {
+            if (accessor.getParameterCount() != 0 || Modifier.isStatic(accessor.getModifiers())) continue;
+            String name = accessor.getName();
+            if (name.startsWith("get") && name.length() > 3) name = name.substring(3);
+            if (!normalize(name).equals(wanted)) continue;
+            try {
+                accessor.setAccessible(true);
+                return accessor.invoke(row);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                throw new RuntimeException("Cannot read sort property " + property + " of " + row.getClass().getName(), e);
+            }
+        }
+        throw new IllegalArgumentException("Result " + row.getClass().getName() + " has no sort property " + property);
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isAsync(Method method) {
+        return method.getReturnType() == CompletableFuture.class || method.getReturnType() == CompletionStage.class;
+    }
+
+    private static Class<?> resultClass(Method method) {
+        if (!isAsync(method)) return method.getReturnType();
+        Type type = method.getGenericReturnType();
+        if (!(type instanceof ParameterizedType)) return Object.class;
+        Type result = ((ParameterizedType) type).getActualTypeArguments()[0];
+        if (result instanceof Class) return (Class<?>) result;
+        if (result instanceof ParameterizedType) return (Class<?>) ((ParameterizedType) result).getRawType();
+        return Object.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Stream<Object> castStream(Object stream) {
+        return (Stream<Object>) stream;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterator<Object> concat(List<Iterator<?>> iterators) {
+        return (Iterator<Object>) iterators.stream()
+                .flatMap(it -> StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false))
+                .iterator();
+    }
+
+    /*
+        Publisher subscribing to the shards' publishers one after another. Demand not yet met by one shard carries
+        over to the next; cancelling cancels the current shard.
+     */
+    private static final class ConcatPublisher implements Flow.Publisher<Object> {
+        private final List<Object> publishers;
+
+        private ConcatPublisher(List<Object> publishers) {
+            this.publishers = publishers;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Object> subscriber) {
+            Objects.requireNonNull(subscriber, "subscriber");
+            ConcatSubscription subscription = new ConcatSubscription(publishers, subscriber);
+            subscriber.onSubscribe(subscription);
+            subscription.subscribeNext();
+        }
+    }
+
+    private static final class ConcatSubscription implements Flow.Subscription, Flow.Subscriber<Object> {
+        private final List<Object> publishers;
+        private final Flow.Subscriber<? super Object> downstream;
+        private int next;
+        private long demand;
+        private Flow.Subscription current;
+        private boolean cancelled;
+
+        private ConcatSubscription(List<Object> publishers, Flow.Subscriber<? super Object> downstream) {
+            this.publishers = publishers;
+            this.downstream = downstream;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void subscribeNext() {
+            Flow.Publisher<Object> publisher;
+            synchronized (this) {
+                if (cancelled) return;
+                publisher = next < publishers.size() ? (Flow.Publisher<Object>) publishers.get(next++) : null;
+            }
+            if (publisher == null) downstream.onComplete();
+            else publisher.subscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                downstream.onError(new IllegalArgumentException("Subscription request must be positive, was " + n));
+                return;
+            }
+            Flow.Subscription target;
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                target = current;
+            }
+            if (target != null) target.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            Flow.Subscription target;
+            synchronized (this) {
+                cancelled = true;
+                target = current;
+            }
+            if (target != null) target.cancel();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            long pending;
+            boolean stop;
+            synchronized (this) {
+                current = subscription;
+                pending = demand;
+                stop = cancelled;
+            }
+            if (stop) subscription.cancel();
+            else if (pending > 0) subscription.request(pending);
+        }
+
+        @Override
+        public void onNext(Object item) {
+            synchronized (this) {
+                if (demand != Long.MAX_VALUE) demand--;
+            }
+            downstream.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            downstream.onError(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                current = null;
+            }
+            subscribeNext();
+        }
+    }
+
+    /*
+        k-way merge of iterators that are each sorted by the comparator, holding one row per shard
+     */
+    private static final class MergingIterator implements Iterator<Object> {
+        private final List<Iterator<?>> iterators;
+        private final PriorityQueue<Object[]> heads;
+
+        private MergingIterator(List<Iterator<?>> iterators, Comparator<Object> order) {
+            this.iterators = iterators;
+            Comparator<Object[]> byRow = (a, b) -> order.compare(a[0], b[0]);
+            this.heads = new PriorityQueue<>(Math.max(1, iterators.size()), byRow.thenComparingInt(a -> (Integer) a[1]));
+            for (int i = 0; i < iterators.size(); i++) advance(i);
+        }
+
+        private void advance(int source) {
+            Iterator<?> it = iterators.get(source);
+            if (it.hasNext()) heads.add(new Object[]{it.next(), source});
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Object next() {
+            Object[] head = heads.poll();
+            if (head == null) throw new NoSuchElementException();
+            advance((Integer) head[1]);
+            return head[0];
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface SimpleJDBCRepository<T, ID> {
 
@@ -12,6 +18,53 @@ public interface SimpleJDBCRepository<T, ID> {
     T findById(ID id);
     int delete(ID id);
     boolean existsById(ID id);
+
+    /*
+        Complete once the write is committed; with SQLConnection.enableWriteBehind writes from all threads are
+        group-committed in batches, otherwise they run before returning
+     */
+    CompletableFuture<Integer> saveAsync(T obj);
+    CompletableFuture<Integer> deleteAsync(ID id);
+
+    /*
+        Id-list variants that send the ids in as few statements as the dialect allows instead of one per id.
+        findAllById iterates in the order of the given ids and leaves out ids without a row.
+     */
+    Map<ID, T> findAllById(Collection<ID> ids);
+    int deleteAllById(Collection<ID> ids);
+    boolean existsAllById(Collection<ID> ids);
+
     List<T> findAll();
-    void saveAll(List<T> entities);
+    List<T> findAll(Sort sort);
+    Page<T> findAll(Pageable pageable);
+
+    /*
+        Lazily streams the table, the stream must be closed to give its connection back.
+        Streamed entities are not tracked for change detection like loaded ones: write them back with upsert.
+     */
+    Stream<T> streamAll();
+    void forEach(Consumer<? super T> action);
+
+    /*
+        Bulk scan of the table in id ranges read concurrently over pooled connections. The stream is parallel
+        and unordered and must be closed; forEachParallel calls the action from several threads at once.
+     */
+    Stream<T> findAllParallel();
+    void forEachParallel(Consumer<? super T> action);
+
+    /*
+        Streams the table to a subscriber, reading rows only as fast as it requests them
+     */
+    Flow.Publisher<T> publishAll();
+
+    /*
+        Inserts new and updates loaded entities in one transaction using JDBC batching, returning the row count of each batch
+     */
+    int[] saveAll(List<T> entities);
+
+    /*
+        Inserts the entity or overwrites the existing row with the same id, in a single dialect-specific statement
+     */
+    int upsert(T obj);
+    int[] upsertAll(List<T> entities);
 }
@@ -0,0 +1,49 @@
+package repository;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+    A chunk of query results that knows whether more rows follow, without counting the whole result
+ */
+public class Slice<T> implements Iterable<T> {
+
+    private final List<T> content;
+    private final Pageable pageable;
+    private final Pageable nextPageable;
+
+    public Slice(List<T> content, Pageable pageable, Pageable nextPageable) {
+        this.content = Collections.unmodifiableList(content);
+        this.pageable = pageable;
+        this.nextPageable = nextPageable;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    public int getNumberOfElements() {
+        return content.size();
+    }
+
+    public Pageable getPageable() {
+        return pageable;
+    }
+
+    public boolean hasNext() {
+        return nextPageable != null;
+    }
+
+    /*
+        Request for the following page, or null if this is the last one
+     */
+    public Pageable nextPageable() {
+        return nextPageable;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return content.iterator();
+    }
+}
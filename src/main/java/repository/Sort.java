@@ -0,0 +1,100 @@
+package repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/*
+    Ordering for paged and sorted repository queries. Properties are entity field or column names.
+ */
+public class Sort {
+
+    public enum Direction { ASC, DESC }
+
+    public static class Order {
+        private final String property;
+        private final Direction direction;
+
+        public Order(String property, Direction direction) {
+            this.property = Objects.requireNonNull(property);
+            this.direction = Objects.requireNonNull(direction);
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Order)) return false;
+            Order other = (Order) o;
+            return property.equals(other.property) && direction == other.direction;
+        }
+
+        @Override
+        public int hashCode() {
+            return property.hashCode() * 31 + direction.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return property + " " + direction;
+        }
+    }
+
+    private static final Sort UNSORTED = new Sort(Collections.emptyList());
+
+    private final List<Order> orders;
+
+    private Sort(List<Order> orders) {
+        this.orders = Collections.unmodifiableList(orders);
+    }
+
+    public static Sort unsorted() {
+        return UNSORTED;
+    }
+
+    public static Sort by(String... properties) {
+        return by(Direction.ASC, properties);
+    }
+
+    public static Sort by(Direction direction, String... properties) {
+        List<Order> orders = new ArrayList<>();
+        for (String property : properties) orders.add(new Order(property, direction));
+        return new Sort(orders);
+    }
+
+    public Sort and(Sort other) {
+        List<Order> orders = new ArrayList<>(this.orders);
+        orders.addAll(other.orders);
+        return new Sort(orders);
+    }
+
+    public boolean isSorted() {
+        return !orders.isEmpty();
+    }
+
+    public List<Order> getOrders() {
+        return orders;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Sort && orders.equals(((Sort) o).orders);
+    }
+
+    @Override
+    public int hashCode() {
+        return orders.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return orders.isEmpty() ? "UNSORTED" : orders.toString();
+    }
+}
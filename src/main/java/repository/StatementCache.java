@@ -0,0 +1,146 @@
+package repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Per-connection cache of PreparedStatements keyed by SQL text, bounded with LRU eviction.
+    Statements are checked out while in use, so two threads sharing a connection never get the same statement.
+ */
+public class StatementCache {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementCache.class);
+
+    private final int maxStatementsPerConnection;
+    private final Map<Connection, ConnectionStatements> caches = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StatementCache(int maxStatementsPerConnection) {
+        if (maxStatementsPerConnection < 1) throw new IllegalArgumentException("Statement cache size must be >= 1");
+        this.maxStatementsPerConnection = maxStatementsPerConnection;
+    }
+
+    public PreparedStatement take(Connection conn, String sql) throws SQLException {
+        PreparedStatement stmt = caches.computeIfAbsent(conn, c -> new ConnectionStatements()).take(sql);
+        if (stmt != null) {
+            hits.increment();
+            return stmt;
+        }
+        misses.increment();
+        return conn.prepareStatement(sql);
+    }
+
+    public void giveBack(Connection conn, String sql, PreparedStatement stmt) {
+        ConnectionStatements statements = caches.get(conn);
+        try {
+            if (statements == null || stmt.isClosed()) {
+                stmt.close();
+                return;
+            }
+            stmt.clearParameters();
+            stmt.clearBatch();
+            statements.put(sql, stmt);
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+        }
+    }
+
+    /*
+        Drops all statements of a connection that is being closed
+     */
+    public void evict(Connection conn) {
+        ConnectionStatements statements = caches.remove(conn);
+        if (statements != null) statements.clear();
+    }
+
+    public void clear() {
+        for (Connection conn : caches.keySet()) evict(conn);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int getMaxStatementsPerConnection() {
+        return maxStatementsPerConnection;
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close cached statement", e);
+        }
+    }
+
+    private class ConnectionStatements {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        private PreparedStatement take(String sql) {
+            lock.lock();
+            try {
+                return statements.remove(sql);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void put(String sql, PreparedStatement stmt) {
+            PreparedStatement duplicate;
+            PreparedStatement eldest = null;
+            lock.lock();
+            try {
+                duplicate = statements.putIfAbsent(sql, stmt) == null ? null : stmt;
+                if (duplicate == null && statements.size() > maxStatementsPerConnection) {
+                    Iterator<PreparedStatement> it = statements.values().iterator();
+                    eldest = it.next();
+                    it.remove();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (duplicate != null) closeQuietly(duplicate);
+            if (eldest != null) {
+                evictions.increment();
+                closeQuietly(eldest);
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                for (PreparedStatement stmt : statements.values()) closeQuietly(stmt);
+                statements.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
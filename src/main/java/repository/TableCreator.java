@@ -3,7 +3,6 @@ package repository;
 import annotations.Column;
 import annotations.Id;
 import annotations.Required;
-import annotations.Table;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,24 +17,19 @@ public class TableCreator {
 
     public static void createTable(Class<?> clazz, SQLConnection sqlConnection){
 
-        String tableName = clazz.getAnnotation(Table.class).name();
+        EntityMetadata metadata = EntityMetadata.of(clazz);
+        FieldBinding[] bindings = metadata.getBindings(sqlConnection.getDatabase());
 
         StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ")
-                .append(tableName)
+                .append(metadata.getTableName())
                 .append(" (");
 
-        for (Field field : clazz.getDeclaredFields()) {
-            Class<?> typeClass = field.getType();
-            String typeName = sqlConnection.getDatabase().getSqlType(typeClass.getSimpleName());
-            if (typeName == null) throw new RuntimeException("Unsupported type: " + typeClass.getSimpleName());
+        for (FieldBinding binding : bindings) {
+            Field field = binding.getField();
+            String typeName = binding.getCodec().getSqlType();
+            if (typeName == null) throw new RuntimeException("Unsupported type: " + field.getType().getSimpleName());
 
-            String varName = field.getName();
-            if(field.isAnnotationPresent(Column.class)){
-                Column col = field.getAnnotation(Column.class);
-                if (!col.name().isEmpty()) varName = col.name();
-            }
-
-            sql.append(varName).append(" ").append(typeName);
+            sql.append(binding.getColumn()).append(" ").append(typeName);
 
             if (field.isAnnotationPresent(Id.class)) {
                 sql.append(" PRIMARY KEY");
@@ -55,15 +49,20 @@ public class TableCreator {
         sql.setLength(sql.length() - 2);
         sql.append(");");
 
-        Connection conn = sqlConnection.getConn();
+        Connection conn = null;
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-            stmt.executeUpdate();
-            if(sqlConnection.getLogsEnabled()){
-                log.info("Created table with sql: {}", sql);
+        try {
+            conn = sqlConnection.acquire();
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                stmt.executeUpdate();
+                if(sqlConnection.getLogsEnabled()){
+                    log.info("Created table with sql: {}", sql);
+                }
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
+        } finally {
+            sqlConnection.release(conn);
         }
 
 
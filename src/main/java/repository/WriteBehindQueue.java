@@ -0,0 +1,334 @@
+package repository;
+
+import databases.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Group commit for single-row saves and deletes. Writers from any thread append to a lock-free queue and get a
+    future; one flusher thread drains up to maxBatchSize writes once that many are waiting or the oldest has
+    waited windowMillis, and sends them as JDBC batches in one transaction. Runs of consecutive writes with the
+    same SQL share a batch, so the queue order, and with it the order of writes to each id, is kept.
+    A future completes with the row count once the transaction has committed; drivers that report
+    Statement.SUCCESS_NO_INFO for batched statements yield 1. If the group fails, its writes are retried one
+    transaction each so that only the failing ones complete exceptionally.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private enum Kind { INSERT, UPDATE, DELETE, BARRIER }
+
+    private final SQLConnection sqlConnection;
+    private final BatchWriter batchWriter;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final Queue<Write> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger unflushed = new AtomicInteger();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final Thread flusher;
+    private volatile boolean urgent;
+    private volatile boolean stopped;
+
+    public WriteBehindQueue(SQLConnection sqlConnection, int maxBatchSize, long windowMillis) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Write-behind batch size must be >= 1");
+        if (windowMillis < 0) throw new IllegalArgumentException("Write-behind window must be >= 0");
+        this.sqlConnection = sqlConnection;
+        this.batchWriter = new BatchWriter(sqlConnection);
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.flusher = new Thread(this::run, "write-behind-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /*
+        Queues an INSERT for entities never loaded or saved, else an UPDATE of the columns changed since.
+        The entity is copied, so the caller may keep modifying it; an unchanged entity completes with 0 at once.
+        Returns null, leaving the entity untouched, if the queue has been closed.
+     */
+    public CompletableFuture<Integer> save(EntityMetadata metadata, Object entity) {
+        Object[] previous = metadata.hasId() ? metadata.snapshotOf(entity) : null;
+        Object[] values = metadata.valuesOf(entity);
+        Write write;
+        if (previous == null) {
+            write = new Write(Kind.INSERT, metadata, metadata.getInsertSql(), entity, metadata.copyOf(entity),
+                    null, null, values, null);
+        } else {
+            BitSet changed = metadata.changedColumns(previous, values);
+            if (changed.isEmpty()) return CompletableFuture.completedFuture(0);
+            write = new Write(Kind.UPDATE, metadata, metadata.updateSql(changed), entity, metadata.copyOf(entity),
+                    changed, previous, values, null);
+        }
+        if (metadata.hasId()) metadata.resetSnapshot(entity, values);
+        CompletableFuture<Integer> result = enqueue(write);
+        if (result == null && metadata.hasId() && metadata.snapshotOf(entity) == values) {
+            metadata.resetSnapshot(entity, previous);
+        }
+        return result;
+    }
+
+    /*
+        Queues a DELETE, or returns null if the queue has been closed
+     */
+    public CompletableFuture<Integer> delete(EntityMetadata metadata, Object id) {
+        return enqueue(new Write(Kind.DELETE, metadata, metadata.getDeleteByIdSql(), null, null, null, null, null, id));
+    }
+
+    /*
+        Blocks until every write queued before the call has been flushed. Returns at once if none is waiting or
+        in flight.
+     */
+    public void flush() {
+        if (unflushed.get() == 0) return;
+        CompletableFuture<Integer> barrier = enqueue(new Write(Kind.BARRIER, null, null, null, null, null, null, null, null));
+        if (barrier == null) return;
+        urgent = true;
+        LockSupport.unpark(flusher);
+        barrier.join();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /*
+        Transactions committed for groups of writes, excluding one-by-one retries
+     */
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    /*
+        Stops the flusher and flushes what is queued, including writes that raced with closing, on the calling
+        thread. Writes arriving later are refused, see enqueue.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        List<Write> group = new ArrayList<>();
+        Write write;
+        while ((write = queue.poll()) != null) {
+            queued.decrementAndGet();
+            group.add(write);
+            if (group.size() == maxBatchSize || queue.isEmpty()) {
+                flushGroup(group);
+                group = new ArrayList<>();
+            }
+        }
+        if (!group.isEmpty()) flushGroup(group);
+    }
+
+    /*
+        The write's future, or null if the queue was closed. A write offered while close() is draining is either
+        taken by the drain or taken back here, never left behind with a future that does not complete.
+     */
+    private CompletableFuture<Integer> enqueue(Write write) {
+        if (stopped) return null;
+        boolean row = write.kind != Kind.BARRIER;
+        if (row) unflushed.incrementAndGet();
+        queue.offer(write);
+        int size = queued.incrementAndGet();
+        if (stopped && queue.remove(write)) {
+            queued.decrementAndGet();
+            if (row) unflushed.decrementAndGet();
+            return null;
+        }
+        if (size == 1 || size >= maxBatchSize) LockSupport.unpark(flusher);
+        return write.result;
+    }
+
+    private void run() {
+        while (true) {
+            Write head = queue.peek();
+            if (head == null) {
+                if (stopped) return;
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining;
+            while (!stopped && !urgent && queued.get() < maxBatchSize
+                    && (remaining = head.enqueuedAt + windowNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            urgent = false;
+
+            List<Write> group = new ArrayList<>(Math.min(maxBatchSize, queued.get()));
+            Write write;
+            while (group.size() < maxBatchSize && (write = queue.poll()) != null) {
+                queued.decrementAndGet();
+                group.add(write);
+            }
+            try {
+                flushGroup(group);
+            } catch (Throwable t) {
+                log.error("Write-behind flush failed", t);
+                for (Write failed : group) failed.fail(t);
+            }
+        }
+    }
+
+    private void flushGroup(List<Write> group) {
+        List<Write> rows = new ArrayList<>(group.size());
+        for (Write write : group) {
+            if (write.kind != Kind.BARRIER) rows.add(write);
+        }
+        if (!rows.isEmpty()) {
+            try {
+                int[] counts = batchWriter.inTransaction(conn -> execute(conn, rows));
+                transactions.increment();
+                for (int i = 0; i < rows.size(); i++) rows.get(i).complete(counts[i]);
+            } catch (RuntimeException e) {
+                if (sqlConnection.getLogsEnabled()) log.info("Write-behind group of {} failed, retrying one by one", rows.size());
+                for (Write write : rows) {
+                    try {
+                        int[] counts = batchWriter.inTransaction(conn -> execute(conn, List.of(write)));
+                        write.complete(counts[0]);
+                    } catch (RuntimeException single) {
+                        write.fail(single);
+                    }
+                }
+            } finally {
+                unflushed.addAndGet(-rows.size());
+            }
+        }
+        for (Write write : group) {
+            if (write.kind == Kind.BARRIER) write.result.complete(0);
+        }
+    }
+
+    /*
+        Row count of each write, batching runs of consecutive writes with the same SQL
+     */
+    private int[] execute(Connection conn, List<Write> rows) throws SQLException {
+        Database database = sqlConnection.getDatabase();
+        int[] counts = new int[rows.size()];
+        int start = 0;
+        while (start < rows.size()) {
+            String sql = rows.get(start).sql;
+            int end = start + 1;
+            while (end < rows.size() && rows.get(end).sql.equals(sql)) end++;
+
+            PreparedStatement stmt = sqlConnection.prepareStatement(conn, sql);
+            try {
+                for (int i = start; i < end; i++) {
+                    rows.get(i).bind(database, stmt);
+                    stmt.addBatch();
+                }
+                int[] batch = stmt.executeBatch();
+                for (int i = 0; i < batch.length; i++) {
+                    counts[start + i] = batch[i] == Statement.SUCCESS_NO_INFO ? 1 : batch[i];
+                }
+                if (sqlConnection.getLogsEnabled()) log.info("{} [write-behind batch of {}]", sql, end - start);
+            } finally {
+                sqlConnection.closeStatement(conn, sql, stmt);
+            }
+            start = end;
+        }
+        return counts;
+    }
+
+    private final class Write {
+        private final Kind kind;
+        private final EntityMetadata metadata;
+        private final String sql;
+        private final Object entity;
+        private final Object copy;
+        private final BitSet changed;
+        private final Object[] previous;
+        private final Object[] values;
+        private final Object id;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private Write(Kind kind, EntityMetadata metadata, String sql, Object entity, Object copy,
+                      BitSet changed, Object[] previous, Object[] values, Object id) {
+            this.kind = kind;
+            this.metadata = metadata;
+            this.sql = sql;
+            this.entity = entity;
+            this.copy = copy;
+            this.changed = changed;
+            this.previous = previous;
+            this.values = values;
+            this.id = id;
+        }
+
+        private void bind(Database database, PreparedStatement stmt) throws SQLException {
+            switch (kind) {
+                case INSERT:
+                    metadata.bindValues(database, copy, stmt, 1);
+                    break;
+                case UPDATE:
+                    metadata.bindUpdate(database, copy, changed, previous, stmt);
+                    break;
+                case DELETE:
+                    metadata.getIdCodec(database).bind(stmt, 1, id);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void complete(int rows) {
+            writes.increment();
+            invalidate();
+            result.complete(rows);
+        }
+
+        /*
+            Fails the write and, unless the entity was saved again meanwhile, restores its snapshot so that the
+            next save repeats the changes
+         */
+        private void fail(Throwable t) {
+            invalidate();
+            if (entity != null && metadata.hasId() && metadata.snapshotOf(entity) == values) {
+                metadata.resetSnapshot(entity, previous);
+            }
+            result.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+        }
+
+        private void invalidate() {
+            if (metadata == null) return;
+            EntityCache cache = sqlConnection.getEntityCache(metadata.getEntityClass());
+            if (cache == null) return;
+            if (kind == Kind.DELETE) {
+                cache.invalidate(id);
+                return;
+            }
+            if (metadata.hasId()) cache.invalidate(metadata.idValueOf(copy));
+            if (previous != null) cache.invalidate(previous[metadata.getIdIndex()]);
+        }
+    }
+}
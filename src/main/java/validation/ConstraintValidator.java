@@ -1,40 +1,62 @@
 package validation;
 
-import annotations.Column;
 import annotations.Id;
 import annotations.Required;
 import annotations.Table;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConstraintValidator {
 
+    private static final Map<Class<?>, Constraints> constraintsCache = new ConcurrentHashMap<>();
+
     public static <T> boolean validateConstraints(Class<T> clazz, Object obj) throws IllegalAccessException {
 
-        if(!clazz.isAnnotationPresent(Table.class)){
+        Constraints constraints = constraintsCache.computeIfAbsent(clazz, Constraints::new);
+
+        if(!constraints.tableFound){
             throw new TableAnnotationRequired("Class must have @Table annotation.");
         }
-        boolean idFound = false;
-
-        for(Field field: clazz.getDeclaredFields()){
-            field.setAccessible(true);
-            if(field.isAnnotationPresent(Required.class)){
-                Object val = field.get(obj);
-                if(val == null || val instanceof String && ((String) val).isEmpty()){
-                    throw new ConstraintViolationException("@Required constraint is violated for field " + field.getName());
-                }
-            }
-            if(field.isAnnotationPresent(Id.class)){
-                idFound = true;
+
+        for(Field field: constraints.requiredFields){
+            Object val = field.get(obj);
+            if(val == null || val instanceof String && ((String) val).isEmpty()){
+                throw new ConstraintViolationException("@Required constraint is violated for field " + field.getName());
             }
         }
-        if(!idFound){
+        if(!constraints.idFound){
             throw new IdAnnotationRequired("Class must have @Id annotation.");
         }
 
         return true;
 
+    }
 
-
+    /*
+        Annotation lookups for a class, resolved once instead of on every validation
+     */
+    private static class Constraints {
+        private final boolean tableFound;
+        private final boolean idFound;
+        private final List<Field> requiredFields = new ArrayList<>();
+
+        private Constraints(Class<?> clazz) {
+            this.tableFound = clazz.isAnnotationPresent(Table.class);
+            boolean idFound = false;
+            for(Field field: clazz.getDeclaredFields()){
+                if(field.isAnnotationPresent(Required.class)){
+                    field.setAccessible(true);
+                    requiredFields.add(field);
+                }
+                if(field.isAnnotationPresent(Id.class)){
+                    idFound = true;
+                }
+            }
+            this.idFound = idFound;
+        }
     }
 }